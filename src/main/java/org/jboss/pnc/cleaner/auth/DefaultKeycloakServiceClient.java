@@ -70,7 +70,7 @@ public class DefaultKeycloakServiceClient implements KeycloakServiceClient {
     }
 
     @Override
-    public String getAuthToken() {
+    public synchronized String getAuthToken() {
         if (keycloakToken == null || refreshRequired()) {
             logger.debug(
                     "Requesting new service account auth token using values:\n" + "authServerUrl {}\n" + "realm {}\n"
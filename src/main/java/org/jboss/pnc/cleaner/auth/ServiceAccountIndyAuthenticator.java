@@ -0,0 +1,32 @@
+package org.jboss.pnc.cleaner.auth;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.commonjava.indy.client.core.auth.IndyClientAuthenticator;
+
+/**
+ * Indy client authenticator adding the service account token to every request. The token is taken from
+ * {@link KeycloakServiceClient} for each request, so a long-living Indy client keeps working after the token it started
+ * with expires. No header is added while no token is available.
+ */
+public class ServiceAccountIndyAuthenticator extends IndyClientAuthenticator {
+
+    private final KeycloakServiceClient serviceClient;
+
+    public ServiceAccountIndyAuthenticator(KeycloakServiceClient serviceClient) {
+        this.serviceClient = serviceClient;
+    }
+
+    @Override
+    public HttpClientBuilder decorateClientBuilder(HttpClientBuilder builder) {
+        return builder.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> {
+            String token = serviceClient.getAuthToken();
+            // without a token the request is sent unauthenticated rather than with an invalid header
+            if (token != null) {
+                request.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+            }
+        });
+    }
+
+}
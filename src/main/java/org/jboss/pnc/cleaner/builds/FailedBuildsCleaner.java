@@ -3,25 +3,19 @@ package org.jboss.pnc.cleaner.builds;
 import io.micrometer.core.annotation.Timed;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.scheduler.Scheduled;
 
-import org.commonjava.indy.client.core.Indy;
 import org.commonjava.indy.client.core.IndyClientException;
-import org.commonjava.indy.client.core.IndyClientModule;
-import org.commonjava.indy.client.core.auth.IndyClientAuthenticator;
-import org.commonjava.indy.client.core.auth.OAuth20BearerTokenAuthenticator;
 import org.commonjava.indy.client.core.module.IndyStoresClientModule;
 import org.commonjava.indy.folo.client.IndyFoloAdminClientModule;
-import org.commonjava.indy.folo.client.IndyFoloContentClientModule;
-import org.commonjava.indy.model.core.Group;
 import org.commonjava.indy.model.core.StoreKey;
 import org.commonjava.indy.model.core.StoreType;
-import org.commonjava.indy.model.core.dto.StoreListingDTO;
-import org.commonjava.indy.model.core.io.IndyObjectMapper;
-import org.commonjava.util.jhttpc.model.SiteConfig;
-import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+import org.apache.http.HttpStatus;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.jboss.pnc.cleaner.auth.KeycloakServiceClient;
+import org.jboss.pnc.cleaner.common.AdaptiveConcurrencyLimiter.RemoteCall;
+import org.jboss.pnc.cleaner.common.RemoteCallLimiters;
+import org.jboss.pnc.cleaner.orchApi.KeysetPagedBuilds;
 import org.jboss.pnc.client.BuildClient;
 import org.jboss.pnc.client.RemoteCollection;
 import org.jboss.pnc.client.RemoteResourceException;
@@ -36,14 +30,29 @@ import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.MessageFormat;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -60,21 +69,67 @@ public class FailedBuildsCleaner {
     private final Pattern buildNumPattern = Pattern.compile("build-(\\d+)");
 
     @Inject
-    KeycloakServiceClient serviceClient;
+    IndyClientHolder indyClientHolder;
 
     @Inject
     BuildClient buildClient;
 
+    @Inject
+    RemoteCallLimiters limiters;
+
     /** Retention time in hours. */
     @ConfigProperty(name = "failedbuildscleaner.retention")
     Integer retention;
 
-    /** Base URL of Indy. */
-    @ConfigProperty(name = "failedbuildscleaner.indyurl")
-    String indyUrl;
+    /** Number of build groups processed in parallel. */
+    @ConfigProperty(name = "failedbuildscleaner.concurrency", defaultValue = "1")
+    int concurrency;
+
+    /** Number of build records loaded from PNC by a single query. */
+    @ConfigProperty(name = "failedbuildscleaner.pnc.batchsize", defaultValue = "50")
+    int batchSize;
+
+    /** Directory for checkpoint journals allowing to resume interrupted runs. Journaling is disabled if not set. */
+    @ConfigProperty(name = "failedbuildscleaner.journal.dir")
+    Optional<String> journalDir;
+
+    /** File with buildContentIds of builds, which will never be cleaned. The cache is disabled if not set. */
+    @ConfigProperty(name = "failedbuildscleaner.decisioncache.file")
+    Optional<String> decisionCacheFile;
+
+    /** Time budget of a run in minutes. The run stops when it is exhausted. The runs are not limited if not set. */
+    @ConfigProperty(name = "failedbuildscleaner.timebudget")
+    Optional<Integer> timeBudget;
+
+    /** Number of shards the build groups are split to. Sharding is disabled if it is 1. */
+    @ConfigProperty(name = "failedbuildscleaner.shard.count", defaultValue = "1")
+    int shardCount;
+
+    /** Lease time of a shard in hours. It has to be shorter than the time between the regular runs. */
+    @ConfigProperty(name = "failedbuildscleaner.shard.leasetime", defaultValue = "12")
+    int shardLeaseTime;
+
+    @Inject
+    ShardLeaseStore shardLeaseStore;
+
+    /**
+     * If true, all old enough failed builds are loaded from PNC by a single paged query at the beginning of the run and
+     * the groups are matched against them without looking them up in PNC. Groups without a matching failed build are
+     * kept, including groups of builds, which records were already removed.
+     */
+    @ConfigProperty(name = "failedbuildscleaner.reversejoin", defaultValue = "false")
+    boolean reverseJoin;
+
+    @ConfigProperty(name = "orch.pageSize", defaultValue = "50")
+    int pageSize;
+
+    /** If true, the regular job only writes a deletion plan to the plan file instead of deleting anything. */
+    @ConfigProperty(name = "failedbuildscleaner.dryrun", defaultValue = "false")
+    boolean dryRun;
 
-    @ConfigProperty(name = "failedbuildscleaner.indy.requesttimeout")
-    int indyRequestTimeout;
+    /** File with the deletion plan written in dry-run mode and executed by the plan execution job. */
+    @ConfigProperty(name = "failedbuildscleaner.plan.file")
+    Optional<String> planFile;
 
     private static List<BuildStatus> failedStatuses;
 
@@ -89,20 +144,89 @@ public class FailedBuildsCleaner {
     MeterRegistry registry;
 
     private Counter errCounter;
+    private Counter sessionErrCounter;
     private Counter warnCounter;
+    private Counter scannedCounter;
+    private Counter cleanedCounter;
+    private Counter skippedCounter;
+
+    private Timer listingTimer;
+    private Timer decisionTimer;
+    private Timer groupTimer;
+    private Timer pncLookupTimer;
+    private Timer indyDeleteTimer;
+    private Timer foloClearTimer;
+
+    /** End time in millis of the oldest failed build left uncleaned by the last run, 0 if there was none. */
+    private final AtomicLong oldestUncleanedEndTime = new AtomicLong();
 
     @PostConstruct
     void initMetrics() {
         errCounter = registry.counter(className + ".error.count");
+        sessionErrCounter = registry.counter(FailedBuildsCleanerSession.class.getName() + ".error.count");
         warnCounter = registry.counter(className + ".warning.count");
+        scannedCounter = registry.counter(className + ".groups.scanned.count");
+        cleanedCounter = registry.counter(className + ".groups.cleaned.count");
+        skippedCounter = registry.counter(className + ".groups.skipped.count");
+
+        listingTimer = phaseTimer("listing");
+        decisionTimer = phaseTimer("decision");
+        groupTimer = phaseTimer("group");
+        pncLookupTimer = phaseTimer("pnc.lookup");
+        indyDeleteTimer = phaseTimer("indy.delete");
+        foloClearTimer = phaseTimer("folo.clear");
+
+        registry.gauge(className + ".oldest.uncleaned.age.seconds", oldestUncleanedEndTime, endTime -> {
+            long millis = endTime.get();
+            return millis == 0 ? 0 : (System.currentTimeMillis() - millis) / 1000.0;
+        });
+    }
+
+    private Timer phaseTimer(String phase) {
+        return Timer.builder(className + "." + phase)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(registry);
     }
 
     @Scheduled(cron = "{failedbuildscleaner.cron}")
     void cleanRegularly() {
         logger.info("Starting regular failed builds cleanup job.");
-        Instant limit = Instant.now().minus(retention, ChronoUnit.HOURS);
-        logger.debug("Cleaning up failed builds older than {}.", limit);
-        cleanOlder(limit);
+        if (dryRun) {
+            Instant limit = Instant.now().minus(retention, ChronoUnit.HOURS);
+            if (planFile.isPresent()) {
+                logger.info("Dry run, planning cleanup of failed builds older than {}.", limit);
+                planOlder(limit, Paths.get(planFile.get()));
+            } else {
+                errCounter.increment();
+                logger.error("Dry run requested, but failedbuildscleaner.plan.file is not set. Nothing is done.");
+            }
+            return;
+        }
+
+        Instant limit;
+        Optional<Instant> unfinished = findUnfinishedRun();
+        if (unfinished.isPresent()) {
+            logger.info("Resuming interrupted cleanup of failed builds older than {}.", unfinished.get());
+            limit = unfinished.get();
+        } else {
+            limit = Instant.now().minus(retention, ChronoUnit.HOURS);
+            logger.debug("Cleaning up failed builds older than {}.", limit);
+        }
+
+        if (shardCount > 1) {
+            cleanShards(limit, shardCount, getDeadline());
+        } else {
+            cleanOlder(limit);
+        }
+    }
+
+    @Scheduled(cron = "{failedbuildscleaner.plan.cron}")
+    void executePlanRegularly() {
+        if (planFile.isPresent() && Files.exists(Paths.get(planFile.get()))) {
+            logger.info("Starting execution of failed builds cleanup plan {}.", planFile.get());
+            executePlan(Paths.get(planFile.get()));
+        }
     }
 
     /**
@@ -112,85 +236,565 @@ public class FailedBuildsCleaner {
      */
     @Timed
     public void cleanOlder(Instant limit) {
-        logger.info("Retrieving service account auth token.");
-        String serviceAccountToken = serviceClient.getAuthToken();
+        cleanOlder(limit, 0, 1, getDeadline());
+    }
+
+    /**
+     * Cleans builds started before the provided point in time, which belong to the given shard. The build groups are
+     * assigned to shards by a consistent hash of their names.
+     *
+     * @param limit point in time marking the line which builds should be deleted
+     * @param shard index of the cleaned shard
+     * @param shardCount total number of shards
+     * @param deadline point in time when the run stops, <code>null</code> for no deadline
+     * @return true if all the groups of the shard were processed, false if the processing was interrupted or stopped by
+     *         the deadline
+     */
+    @Timed
+    public boolean cleanOlder(Instant limit, int shard, int shardCount, Instant deadline) {
+        FailedBuildsCleanerSession session = initSession(limit);
+        session.setDeadline(deadline);
+        List<String> groupNames = loadGroups(session);
+        try {
+            session.setJournal(openJournal(limit, shard, shardCount));
+            return processGroups(groupNames, session, shard, shardCount);
+        } finally {
+            finishRun(session);
+        }
+    }
+
+    /**
+     * Cleans all shards, which can be leased by this replica. The lease of a cleaned shard is kept until it expires, so
+     * the shard is not cleaned again by another replica in the same night. The lease of a shard, which failed to be
+     * cleaned, is released for other replicas. A replica finishing its shard continues with the shards not leased yet,
+     * so the work is spread across all running replicas. No more shards are taken when the run deadline is reached.
+     * <p>
+     * The Indy listings, the decision cache and the failed builds are loaded once, when the first shard is leased, and
+     * they are shared by all the shards cleaned in the run. Every shard has its own journal, so a shard already
+     * completed in a resumed run is skipped.
+     *
+     * @param limit point in time marking the line which builds should be deleted
+     * @param shardCount total number of shards
+     * @param deadline point in time when the run stops, <code>null</code> for no deadline
+     */
+    void cleanShards(Instant limit, int shardCount, Instant deadline) {
+        String owner = ManagementFactory.getRuntimeMXBean().getName();
+        Duration leaseTime = Duration.ofHours(shardLeaseTime);
+        FailedBuildsCleanerSession session = initSession(limit);
+        session.setDeadline(deadline);
+        List<String> groupNames = null;
+        try {
+            for (int shard = 0; shard < shardCount; shard++) {
+                if (session.isPastDeadline()) {
+                    logger.info("Run deadline reached, shards from {} on are left for other replicas.", shard);
+                    return;
+                }
+                try {
+                    if (!shardLeaseStore.tryAcquire(shard, owner, leaseTime)) {
+                        logger.debug("Shard {} is leased by another replica.", shard);
+                        continue;
+                    }
+                } catch (CleanerException e) {
+                    errCounter.increment();
+                    logger.error("Failed to lease shard " + shard + ". Skipping.", e);
+                    continue;
+                }
+
+                boolean finished = false;
+                try {
+                    FailedBuildsCleanerJournal journal = openJournal(limit, shard, shardCount);
+                    if (journal.isFinished()) {
+                        logger.info("Shard {} of {} was already cleaned in this run.", shard, shardCount);
+                        closeJournal(journal);
+                        finished = true;
+                        continue;
+                    }
+                    logger.info("Cleaning shard {} of {} as {}.", shard, shardCount, owner);
+                    session.setJournal(journal);
+                    if (groupNames == null) {
+                        groupNames = loadGroups(session);
+                    }
+                    finished = processGroups(groupNames, session, shard, shardCount);
+                } finally {
+                    if (!finished) {
+                        closeJournal(session.getJournal());
+                        releaseShard(shard, owner);
+                    }
+                }
+                if (!finished) {
+                    return;
+                }
+            }
+        } finally {
+            if (groupNames != null) {
+                finishRun(session);
+            }
+        }
+    }
+
+    /**
+     * Computes the deadline of a run starting now from the configured time budget.
+     *
+     * @return the deadline or <code>null</code> if the runs are not time limited
+     */
+    private Instant getDeadline() {
+        return timeBudget.map(minutes -> Instant.now().plus(minutes, ChronoUnit.MINUTES)).orElse(null);
+    }
+
+    private void releaseShard(int shard, String owner) {
+        try {
+            shardLeaseStore.release(shard, owner);
+        } catch (CleanerException e) {
+            warnCounter.increment();
+            logger.warn("Failed to release lease of shard " + shard + ".", e);
+        }
+    }
+
+    /**
+     * Assigns the group to a shard using the jump consistent hash of the group name. Changing the number of shards
+     * moves only the minimal number of groups between the shards.
+     *
+     * @param groupName the group name
+     * @param shardCount total number of shards
+     * @return index of the shard the group belongs to
+     */
+    static int getShard(String groupName, int shardCount) {
+        // 64-bit FNV-1a hash of the name
+        long key = 0xcbf29ce484222325L;
+        for (byte b : groupName.getBytes(StandardCharsets.UTF_8)) {
+            key ^= b & 0xff;
+            key *= 0x100000001b3L;
+        }
+
+        long bucket = -1;
+        long next = 0;
+        while (next < shardCount) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    /**
+     * Plans cleanup of builds started before the provided point in time without deleting anything. It runs the listing
+     * and decision phases like {@link #cleanOlder(Instant)} and writes the stores, which would be deleted, to the plan
+     * file. The plan can be applied later by {@link #executePlan(Path)}.
+     *
+     * @param limit point in time marking the line which builds should be deleted
+     * @param planFile file to write the plan to
+     */
+    @Timed
+    public void planOlder(Instant limit, Path planFile) {
+        FailedBuildsCleanerSession session = initSession(limit);
+        session.setDeadline(getDeadline());
+        try (FailedBuildsCleanupPlan plan = FailedBuildsCleanupPlan.create(planFile)) {
+            session.setPlan(plan);
+            List<String> groupNames = loadGroups(session);
+            boolean finished;
+            try {
+                finished = processGroups(groupNames, session, 0, 1);
+            } finally {
+                finishRun(session);
+            }
+            if (finished) {
+                plan.commit();
+                // every planned group means deletes of its stores and a tracking record cleanup in Indy
+                logger.info(
+                        "Cleanup plan {} contains {} groups with {} stores. Executing it takes {} Indy calls. "
+                                + "Making the decisions took {} PNC calls.",
+                        planFile,
+                        plan.getGroupCount(),
+                        plan.getStoreCount(),
+                        plan.getStoreCount() + plan.getGroupCount(),
+                        session.getPncCalls());
+            }
+        } catch (IOException e) {
+            errCounter.increment();
+            logger.error("Failed to write the cleanup plan " + planFile + ".", e);
+        }
+    }
 
-        logger.info("Initializing Indy client.");
-        Indy indyClient = initIndy(serviceAccountToken);
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+    /**
+     * Executes a cleanup plan written by {@link #planOlder(Instant, Path)}. The planned stores are deleted without
+     * asking PNC or loading Indy listings again. The plan file is deleted when the execution finishes.
+     *
+     * @param planFile the plan file
+     */
+    @Timed
+    public void executePlan(Path planFile) {
+        List<FailedBuildsCleanupPlan.Entry> entries;
+        try {
+            entries = FailedBuildsCleanupPlan.read(planFile);
+        } catch (IOException e) {
+            errCounter.increment();
+            logger.error("Failed to read the cleanup plan " + planFile + ".", e);
+            return;
+        }
+
+        // the limit is not used as all the decisions are already made
+        FailedBuildsCleanerSession session = initSession(Instant.now());
+        logger.info("Executing cleanup plan of {} groups using {} workers.", entries.size(), concurrency);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            for (FailedBuildsCleanupPlan.Entry entry : entries) {
+                executor.execute(() -> executePlanEntry(entry, session));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        if (awaitWorkers(executor)) {
+            try {
+                Files.delete(planFile);
+            } catch (IOException e) {
+                warnCounter.increment();
+                logger.warn("Failed to delete the executed cleanup plan " + planFile + ".", e);
+            }
+        }
+    }
+
+    private FailedBuildsCleanerSession initSession(Instant limit) {
+        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(
+                indyClientHolder.getIndy(),
+                limit,
+                sessionErrCounter);
+        session.setListingTimer(listingTimer);
+        session.setListingLimiter(limiters.indy());
+        return session;
+    }
 
+    /**
+     * Loads the build groups from Indy along with the data shared by all the shards of a run: the decision cache, the
+     * failed builds in reverse-join mode and the snapshot of existing stores, which are stored in the session.
+     *
+     * @param session cleaner session
+     * @return names of the build groups ordered from the oldest build
+     */
+    private List<String> loadGroups(FailedBuildsCleanerSession session) {
         // get list of build group names from Indy
         logger.info("Loading list of existing repository groups from Indy.");
-        List<String> groupNames = getGroupNames(session);
+        List<String> groupNames = new ArrayList<>(listingTimer.record(() -> getGroupNames(session)));
 
-        // cycle through them and clean one by one
-        for (String groupName : groupNames) {
-            cleanBuildIfNeeded(groupName, session);
+        // groups of builds known to be kept don't need to be checked in PNC again
+        FailedBuildsDecisionCache decisionCache = loadDecisionCache();
+        int evicted = decisionCache.retainExisting(groupNames);
+        logger.info(
+                "Decision cache contains {} kept groups, {} groups were evicted as they don't exist anymore.",
+                decisionCache.size(),
+                evicted);
+        session.setDecisionCache(decisionCache);
+
+        if (reverseJoin) {
+            session.setFailedBuilds(loadFailedBuilds(session));
         }
+
+        // the oldest builds are the most valuable to clean, so they go first in case the run deadline is reached
+        groupNames.sort(Comparator.comparingLong(this::getBuildNumber));
+
+        // take a snapshot of existing stores, so the cleanup does not need to check them one by one
+        logger.info("Loading list of existing hosted repositories from Indy.");
+        session.setExistingStores(listingTimer.record(() -> getExistingStores(groupNames, session)));
+        return groupNames;
     }
 
     /**
-     * Initializes Indy client with given access token.
+     * Cleans or plans cleanup of the groups of the shard that need it. The journal of the shard is completed if all the
+     * groups were processed and it is closed in any case.
      *
-     * @param accessToken
-     * @return
+     * @param groupNames names of all the build groups loaded by {@link #loadGroups(FailedBuildsCleanerSession)}
+     * @param session cleaner session
+     * @param shard index of the processed shard
+     * @param shardCount total number of shards
+     * @return true if all the groups were processed, false if the processing was interrupted or stopped by the deadline
      */
-    @Timed
-    Indy initIndy(String accessToken) {
-        IndyClientAuthenticator authenticator = null;
-        if (accessToken != null) {
-            logger.debug("Creating Indy authenticator.");
-            authenticator = new OAuth20BearerTokenAuthenticator(accessToken);
+    private boolean processGroups(
+            List<String> groupNames,
+            FailedBuildsCleanerSession session,
+            int shard,
+            int shardCount) {
+        if (shardCount > 1) {
+            groupNames = groupNames.stream().filter(n -> getShard(n, shardCount) == shard).collect(Collectors.toList());
+            logger.info("Shard {} of {} contains {} repository groups.", shard, shardCount, groupNames.size());
         }
+
+        // process them in parallel, each worker resolves a batch of build records and cleans the batch
+        logger.info(
+                "Processing {} repository groups using {} workers in batches of {}.",
+                groupNames.size(),
+                concurrency,
+                batchSize);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
         try {
-            SiteConfig siteConfig = new SiteConfigBuilder("indy", indyUrl).withRequestTimeoutSeconds(indyRequestTimeout)
-                    // this client is used in single thread, we don't need more than 1 connection at a time
-                    .withMaxConnections(1)
-                    .build();
+            for (int i = 0; i < groupNames.size(); i += batchSize) {
+                List<String> batch = groupNames.subList(i, Math.min(i + batchSize, groupNames.size()));
+                executor.execute(() -> cleanBuildsIfNeeded(batch, session));
+            }
+        } finally {
+            executor.shutdown();
+        }
 
-            IndyClientModule[] modules = new IndyClientModule[] {
-                    new IndyFoloAdminClientModule(),
-                    new IndyFoloContentClientModule() };
+        try {
+            // groups carried over because of the deadline leave the run unfinished, so it is resumed later
+            boolean finished = awaitWorkers(executor) && session.getCarriedOver() == 0;
+            if (finished) {
+                session.getJournal().complete();
+            }
+            if (session.getCarriedOver() > 0) {
+                warnCounter.increment();
+                logger.warn(
+                        "Run deadline reached, {} repository groups are carried over to the next run.",
+                        session.getCarriedOver());
+            }
+            return finished;
+        } finally {
+            closeJournal(session.getJournal());
+        }
+    }
 
-            Map<String, String> mdcCopyMappings = new HashMap<>(); // TODO fill in these if needed
-            return new Indy(siteConfig, authenticator, new IndyObjectMapper(true), mdcCopyMappings, modules);
-        } catch (IndyClientException e) {
+    /**
+     * Publishes the oldest uncleaned build of the run and saves the decision cache.
+     *
+     * @param session cleaner session
+     */
+    private void finishRun(FailedBuildsCleanerSession session) {
+        Instant oldestUncleaned = session.getOldestDueBuildEndTime();
+        oldestUncleanedEndTime.set(oldestUncleaned == null ? 0 : oldestUncleaned.toEpochMilli());
+        session.getDecisionCache().save();
+    }
+
+    private void closeJournal(FailedBuildsCleanerJournal journal) {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            warnCounter.increment();
+            logger.warn("Failed to close the cleanup journal.", e);
+        }
+    }
+
+    /**
+     * Loads buildContentIds and end times of all builds with one of the failed statuses, which ended before the limit,
+     * using a single paged query. Every page is loaded by a separate call, which is counted in the session. In case of
+     * an error the run continues without them and all the groups are looked up.
+     *
+     * @param session cleaner session
+     * @return the loaded failed builds or null if they could not be loaded
+     */
+    FailedBuildsIdSet loadFailedBuilds(FailedBuildsCleanerSession session) {
+        String statuses = failedStatuses.stream().map(BuildStatus::name).collect(Collectors.joining(","));
+        String query = "status=in=(" + statuses + ");endTime=lt=" + session.getTo();
+        logger.info("Loading failed builds from PNC with query \"{}\".", query);
+
+        FailedBuildsIdSet failedBuilds = new FailedBuildsIdSet();
+        try {
+            KeysetPagedBuilds builds = new KeysetPagedBuilds(
+                    (sort, q) -> lookUpInPnc(session, () -> buildClient.getAll(null, null, sort, q)),
+                    query,
+                    pageSize);
+            for (Build build : builds) {
+                failedBuilds.add(build.getBuildContentId(), build.getEndTime());
+            }
+        } catch (RuntimeException e) {
+            errCounter.increment();
+            logger.error("Error loading failed builds from PNC. All repository groups will be looked up.", e);
+            return null;
+        }
+        failedBuilds.seal();
+        logger.info("Loaded {} failed builds.", failedBuilds.size());
+        return failedBuilds;
+    }
+
+    /**
+     * Gets the build number of the group used to order the groups from the oldest. Groups with names of the legacy
+     * format "build_&lt;name&gt;_&lt;timestamp&gt;" predate the numeric ids, so they get -1 to be ordered first.
+     *
+     * @param groupName the group name
+     * @return the build number parsed from the name or -1
+     */
+    private long getBuildNumber(String groupName) {
+        Matcher matcher = buildNumPattern.matcher(groupName);
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Waits for the shut down executor to finish all the submitted work.
+     *
+     * @param executor the executor running the cleanup workers
+     * @return true if the work finished, false if the waiting was interrupted
+     */
+    private boolean awaitWorkers(ExecutorService executor) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
             errCounter.increment();
-            throw new IllegalStateException("Failed to create Indy client: " + e.getMessage(), e);
+            logger.error("Interrupted while waiting for the cleanup workers to finish.", e);
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
     /**
-     * Loads Maven build group names from Indy.
+     * Opens the checkpoint journal for the shard of the run with given limit if the journal directory is configured.
+     * Runs without sharding use a single journal.
+     *
+     * @param limit the run limit timestamp
+     * @param shard index of the shard
+     * @param shardCount total number of shards
+     * @return the opened journal or a disabled one if journaling is not configured or the journal cannot be opened
+     */
+    FailedBuildsCleanerJournal openJournal(Instant limit, int shard, int shardCount) {
+        if (journalDir.isPresent()) {
+            Path dir = Paths.get(journalDir.get());
+            try {
+                return shardCount > 1 ? FailedBuildsCleanerJournal.open(dir, limit, shard)
+                        : FailedBuildsCleanerJournal.open(dir, limit);
+            } catch (IOException e) {
+                errCounter.increment();
+                logger.error("Failed to open the cleanup journal. The run will not be resumable.", e);
+            }
+        }
+        return FailedBuildsCleanerJournal.disabled();
+    }
+
+    /**
+     * Loads the decision cache from its file if it is configured.
+     *
+     * @return the loaded cache or a disabled one if the cache is not configured or it cannot be loaded
+     */
+    FailedBuildsDecisionCache loadDecisionCache() {
+        if (decisionCacheFile.isPresent()) {
+            try {
+                return FailedBuildsDecisionCache.load(Paths.get(decisionCacheFile.get()));
+            } catch (IOException e) {
+                errCounter.increment();
+                logger.error("Failed to load the decision cache. All groups will be checked in PNC.", e);
+            }
+        }
+        return FailedBuildsDecisionCache.disabled();
+    }
+
+    /**
+     * Looks for a run interrupted before it completed in the journal directory if it is configured.
+     *
+     * @return limit timestamp of the interrupted run, empty if there is none
+     */
+    Optional<Instant> findUnfinishedRun() {
+        if (journalDir.isPresent()) {
+            try {
+                return FailedBuildsCleanerJournal.findUnfinishedRun(Paths.get(journalDir.get()));
+            } catch (IOException e) {
+                errCounter.increment();
+                logger.error("Failed to look for an interrupted cleanup in the journal directory.", e);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Loads Maven build group names from Indy. The group listing is streamed and only the matching names are kept.
      *
      * @param session initialized Indy client, cannot be <code>null</code>
      * @return the loaded list of group names, can be empty, never <code>null</code>
      */
-    @Timed
     List<String> getGroupNames(FailedBuildsCleanerSession session) {
         Pattern pattern = Pattern.compile("build(-\\d+|_.+_\\d{8}\\.\\d{4})");
-        IndyStoresClientModule indyStores = session.getStores();
+        try {
+            return limiters.indy()
+                    .callListing(
+                            () -> session.getListing()
+                                    .listStoreNames(MAVEN_PKG_KEY, StoreType.group, n -> pattern.matcher(n).matches()));
+        } catch (IndyClientException e) {
+            errCounter.increment();
+            throw new RuntimeException("Error getting Maven group list from Indy: " + e.toString(), e);
+        }
+    }
+
+    /**
+     * Collects keys of Maven build groups and hosted repositories existing in Indy. The groups are taken from the
+     * already loaded group names and the hosted repository names are streamed from Indy. Only hosted repositories
+     * matching a build group name are kept.
+     *
+     * @param groupNames loaded build group names
+     * @param session cleaner session
+     * @return the set of existing store keys or <code>null</code> if the hosted repositories could not be loaded
+     */
+    Set<StoreKey> getExistingStores(List<String> groupNames, FailedBuildsCleanerSession session) {
+        Set<String> names = new HashSet<>(groupNames);
+        Set<StoreKey> result = new HashSet<>();
+        for (String name : names) {
+            result.add(new StoreKey(MAVEN_PKG_KEY, StoreType.group, name));
+        }
 
-        List<Group> groups;
         try {
-            StoreListingDTO<Group> groupsListing = indyStores.listGroups(MAVEN_PKG_KEY);
-            if (groupsListing == null) {
-                errCounter.increment();
-                throw new RuntimeException(
-                        "Error getting Maven group list from Indy. The result " + "was empty. Check Indy URL.");
+            List<String> hostedNames = limiters.indy()
+                    .callListing(
+                            () -> session.getListing()
+                                    .listStoreNames(MAVEN_PKG_KEY, StoreType.hosted, names::contains));
+            for (String hostedName : hostedNames) {
+                result.add(new StoreKey(MAVEN_PKG_KEY, StoreType.hosted, hostedName));
             }
-            groups = groupsListing.getItems();
         } catch (IndyClientException e) {
             errCounter.increment();
-            throw new RuntimeException("Error getting Maven group list from Indy: " + e.toString(), e);
+            logger.error("Error getting Maven hosted repository list from Indy. Stores will be deleted blindly.", e);
+            return null;
         }
-        List<String> result = groups.stream()
-                .map(g -> g.getName())
-                .filter(n -> pattern.matcher(n).matches())
-                .collect(Collectors.toList());
         return result;
     }
 
+    /**
+     * Resolves build records for a batch of groups using a single PNC query and cleans the groups that need it. If the
+     * batch query fails, the build records are loaded one by one. The groups left when the run deadline is reached are
+     * counted as carried over to the next run.
+     *
+     * @param groupNames the potentially cleaned group names
+     * @param session cleaner session
+     */
+    void cleanBuildsIfNeeded(List<String> groupNames, FailedBuildsCleanerSession session) {
+        if (session.isPastDeadline()) {
+            session.addCarriedOver(groupNames.size());
+            return;
+        }
+
+        // groups already decided in a previous attempt of the run or before don't need their build records, in
+        // reverse-join mode the loaded failed builds decide about all the groups
+        FailedBuildsCleanerJournal journal = session.getJournal();
+        FailedBuildsDecisionCache decisionCache = session.getDecisionCache();
+        List<String> undecided = session.getFailedBuilds() != null ? Collections.emptyList()
+                : groupNames.stream()
+                        .filter(n -> journal.getDecision(n) == null && !decisionCache.contains(n))
+                        .collect(Collectors.toList());
+        try {
+            if (!undecided.isEmpty()) {
+                resolveBuildRecords(undecided, session);
+            }
+        } catch (CleanerException ex) {
+            errCounter.increment();
+            logger.error("Error loading build records for a batch of groups. Falling back to single lookups.", ex);
+        }
+
+        for (int i = 0; i < groupNames.size(); i++) {
+            if (session.isPastDeadline()) {
+                List<String> rest = groupNames.subList(i, groupNames.size());
+                rest.forEach(session::forgetBuildRecord);
+                session.addCarriedOver(rest.size());
+                return;
+            }
+            String groupName = groupNames.get(i);
+            Timer.Sample sample = Timer.start(registry);
+            try {
+                cleanBuildIfNeeded(groupName, session);
+            } catch (RuntimeException e) {
+                errCounter.increment();
+                logger.error("Unexpected error when cleaning group " + groupName + ". Skipping.", e);
+            } finally {
+                sample.stop(groupTimer);
+                session.forgetBuildRecord(groupName);
+            }
+        }
+    }
+
     /**
      * Checks if the given group name matches an old enough failed build and if so it cleans everything produced by the
      * build. The cleaned data include tracking record, build group, build hosted repo and any generic http repos from
@@ -199,32 +803,60 @@ public class FailedBuildsCleaner {
      * @param groupName the potentially cleaned group name
      * @param session cleaner session
      */
-    @Timed
     void cleanBuildIfNeeded(String groupName, FailedBuildsCleanerSession session) {
+        scannedCounter.increment();
+        FailedBuildsCleanerJournal journal = session.getJournal();
+        if (journal.isCompleted(groupName)) {
+            logger.debug("Group {} was already cleaned in this run.", groupName);
+            skippedCounter.increment();
+            return;
+        }
+
         logger.debug("Loading build record for group {}.", groupName);
         try {
-            boolean clean = shouldClean(groupName, session);
+            Boolean decision = journal.getDecision(groupName);
+            boolean clean;
+            if (decision == null) {
+                Timer.Sample sample = Timer.start(registry);
+                try {
+                    clean = shouldClean(groupName, session);
+                } finally {
+                    sample.stop(decisionTimer);
+                }
+                journal.recordDecision(groupName, clean);
+            } else {
+                clean = decision;
+            }
 
-            if (clean) {
+            if (!clean) {
+                skippedCounter.increment();
+            } else if (session.isDryRun()) {
+                logger.info("Planning cleanup of repositories for {}.", groupName);
+                planCleanup(groupName, session);
+                cleanedCounter.increment();
+            } else {
                 logger.info("Cleaning repositories for {}.", groupName);
-                IndyStoresClientModule stores = session.getStores();
                 try {
                     // delete the content
                     String pkgKey = MAVEN_PKG_KEY;
                     logger.debug("Cleaning Maven group and hosted repository {}.", groupName);
-                    deleteGroupAndHostedRepo(pkgKey, groupName, stores);
+                    deleteGroupAndHostedRepo(pkgKey, groupName, session);
 
                     logger.debug("Searching for generic-http stores for {}.", groupName);
                     List<StoreKey> genericRepos = findGenericRepos(groupName, session);
                     for (StoreKey genericRepo : genericRepos) {
-                        stores.delete(genericRepo, "Scheduled cleanup of failed builds.");
+                        deleteStore(genericRepo, session.getStores());
                     }
 
                     // delete the tracking record - mostly not needed, only in case the build failed in
                     // promotion phase and the tracking report was already sealed
                     IndyFoloAdminClientModule foloAdmin = session.getFoloAdmin();
                     logger.debug("Cleaning tracking record {} (if present).", groupName);
-                    foloAdmin.clearTrackingRecord(groupName);
+                    clearTrackingRecord(groupName, foloAdmin);
+
+                    journal.recordCompleted(groupName);
+                    session.removeDueBuild(groupName);
+                    cleanedCounter.increment();
                 } catch (IndyClientException e) {
                     errCounter.increment();
                     String description = MessageFormat.format("Failed to perform cleanups in Indy for %s", groupName);
@@ -239,18 +871,93 @@ public class FailedBuildsCleaner {
     }
 
     /**
-     * Checks if repo group with given name should be cleaned. It says so if the build record with matching
-     * buildContentId could not be found (probably dropped before by temporary builds cleaner) or if the loaded build
-     * record has one of the statuses listed in failedStatuses and
+     * Adds cleanup of the group to the session plan. It collects the same stores, which would be deleted by
+     * {@link #cleanBuildIfNeeded(String, FailedBuildsCleanerSession)}.
+     *
+     * @param groupName the cleaned group name
+     * @param session cleaner session in dry-run mode
+     */
+    private void planCleanup(String groupName, FailedBuildsCleanerSession session) {
+        List<StoreKey> storeKeys = new ArrayList<>();
+        StoreKey groupKey = new StoreKey(MAVEN_PKG_KEY, StoreType.group, groupName);
+        if (session.mayExist(groupKey)) {
+            storeKeys.add(groupKey);
+        }
+        StoreKey hostedKey = new StoreKey(MAVEN_PKG_KEY, StoreType.hosted, groupName);
+        if (session.mayExist(hostedKey)) {
+            storeKeys.add(hostedKey);
+        }
+        storeKeys.addAll(findGenericRepos(groupName, session));
+
+        try {
+            session.getPlan().add(groupName, storeKeys);
+        } catch (IOException e) {
+            errCounter.increment();
+            logger.error("Failed to add group " + groupName + " to the cleanup plan.", e);
+        }
+    }
+
+    /**
+     * Deletes the planned stores of a group and its tracking record.
+     *
+     * @param entry the planned group cleanup
+     * @param session cleaner session
+     */
+    void executePlanEntry(FailedBuildsCleanupPlan.Entry entry, FailedBuildsCleanerSession session) {
+        String groupName = entry.getGroup();
+        logger.info("Cleaning repositories for {} according to the plan.", groupName);
+        try {
+            for (String store : entry.getStores()) {
+                deleteStore(StoreKey.fromString(store), session.getStores());
+            }
+            logger.debug("Cleaning tracking record {} (if present).", groupName);
+            clearTrackingRecord(groupName, session.getFoloAdmin());
+        } catch (IndyClientException e) {
+            errCounter.increment();
+            logger.error("Failed to perform cleanups in Indy for " + groupName + ".", e);
+        } catch (RuntimeException e) {
+            errCounter.increment();
+            logger.error("Unexpected error when cleaning group " + groupName + ". Skipping.", e);
+        }
+    }
+
+    /**
+     * Checks if repo group with given name should be cleaned. Groups found in the decision cache are kept. In
+     * reverse-join mode groups of the loaded failed builds are cleaned and all the other groups are kept without asking
+     * PNC. Otherwise it uses the build record resolved in the session by
+     * {@link #resolveBuildRecords(List, FailedBuildsCleanerSession)} if available, or it loads it from PNC. It says so
+     * if the build record with matching buildContentId could not be found (probably dropped before by temporary builds
+     * cleaner) or if the loaded build record has one of the statuses listed in failedStatuses and
      *
      * @param groupName
      * @param session
      * @return
      * @throws CleanerException in case of an error when loading the build record
      */
-    @Timed
     boolean shouldClean(String groupName, FailedBuildsCleanerSession session) throws CleanerException {
-        Build build = getBuildRecord(groupName);
+        if (session.getDecisionCache().contains(groupName)) {
+            logger.debug("Build for group {} is known to be kept.", groupName);
+            return false;
+        }
+        FailedBuildsIdSet failedBuilds = session.getFailedBuilds();
+        if (failedBuilds != null && failedBuilds.contains(groupName)) {
+            logger.debug("Build for group {} is a failed build older than the limit. Cleaning...", groupName);
+            Instant endTime = failedBuilds.getEndTime(groupName);
+            if (endTime != null) {
+                session.addDueBuild(groupName, endTime);
+            }
+            return true;
+        } else if (failedBuilds != null) {
+            logger.debug("Build for group {} is not a failed build older than the limit. Keeping.", groupName);
+            return false;
+        }
+
+        Build build;
+        if (session.hasBuildRecord(groupName)) {
+            build = session.getBuildRecord(groupName);
+        } else {
+            build = getBuildRecord(groupName, session);
+        }
         boolean clean = false;
         if (build == null) {
             warnCounter.increment();
@@ -262,10 +969,27 @@ public class FailedBuildsCleaner {
         } else if (failedStatuses.contains(build.getStatus()) && build.getEndTime().isBefore(session.getTo())) {
             logger.debug("Build record for group {} is older than the limit. Cleaning...", groupName);
             clean = true;
+            session.addDueBuild(groupName, build.getEndTime());
+        } else if (isKeptForever(build)) {
+            session.getDecisionCache().add(groupName);
         }
         return clean;
     }
 
+    /**
+     * Checks if the build will never be cleaned, so the decision can be cached. It is true for a persistent build in a
+     * final state other than the failed ones. Temporary builds are not cached, because their build records are removed
+     * by temporary builds cleaner, after which the group must be cleaned.
+     *
+     * @param build the loaded build record
+     * @return true if the decision to keep the build group cannot change anymore
+     */
+    private boolean isKeptForever(Build build) {
+        BuildStatus status = build.getStatus();
+        return Boolean.FALSE.equals(build.getTemporaryBuild()) && status != null && status.isFinal()
+                && !failedStatuses.contains(status);
+    }
+
     /**
      * Finds storeKeys of repos matching the pattern used to store repos for generic http downloads. It finds groups
      * matching the pattern for given buildContentId and collects their keys along with keys of their constituents,
@@ -274,17 +998,8 @@ public class FailedBuildsCleaner {
      * @param buildContentId the build content ID
      * @return the list of matching store keys, might be empty, never null
      */
-    @Timed
     List<StoreKey> findGenericRepos(String buildContentId, FailedBuildsCleanerSession session) {
-        List<StoreKey> result = new ArrayList<>();
-        for (Group genericGroup : session.getGenericGroups()) {
-            if (genericGroup.getName().startsWith("g-") && genericGroup.getName().endsWith("-" + buildContentId)) {
-                result.add(genericGroup.getKey());
-                result.addAll(genericGroup.getConstituents());
-            }
-        }
-
-        return result;
+        return session.getGenericRepos(buildContentId);
     }
 
     /**
@@ -292,15 +1007,17 @@ public class FailedBuildsCleaner {
      * logs an error and returns null.
      *
      * @param buildContentId id of the wanted build
+     * @param session cleaner session
      * @return found build record or null
      */
-    @Timed
-    private Build getBuildRecord(String buildContentId) throws CleanerException {
+    private Build getBuildRecord(String buildContentId, FailedBuildsCleanerSession session) throws CleanerException {
         logger.debug("Looking for build record with query \"buildContentId==" + buildContentId + "\"");
 
         try {
-            RemoteCollection<Build> builds = buildClient
-                    .getAll(null, null, Optional.empty(), Optional.of("buildContentId==" + buildContentId));
+            RemoteCollection<Build> builds = lookUpInPnc(
+                    session,
+                    () -> buildClient
+                            .getAll(null, null, Optional.empty(), Optional.of("buildContentId==" + buildContentId)));
 
             if (builds.size() > 1) {
                 errCounter.increment();
@@ -308,27 +1025,9 @@ public class FailedBuildsCleaner {
                 return null;
 
             } else if (builds.size() == 0) {
-                warnCounter.increment();
-                logger.warn("Build record NOT found for buildContentId = {}", buildContentId);
-
-                Matcher matcher = buildNumPattern.matcher(buildContentId);
-                if (matcher.matches()) {
-                    String id = matcher.group(1);
-                    logger.debug("Attempting to find build record by id {}", id);
-                    try {
-                        return buildClient.getSpecific(id);
-                    } catch (RemoteResourceNotFoundException e) {
-                        warnCounter.increment();
-                        logger.warn("Build record NOT found even by ID = {}", id);
-                        return null;
-                    }
-                } else {
-                    errCounter.increment();
-                    logger.error("Unable ot parse buildContentId=%s", buildContentId);
-                    return null;
-                }
+                return findMissingBuildRecord(buildContentId, session);
             } else {
-                logger.debug("Build with buildContentId = {} found.");
+                logger.debug("Build with buildContentId = {} found.", buildContentId);
                 return builds.iterator().next();
             }
         } catch (RemoteResourceException e) {
@@ -342,26 +1041,269 @@ public class FailedBuildsCleaner {
     }
 
     /**
-     * Deletes the build hosted repository and repo group from Indy if it exists.
+     * Loads build records for a batch of groups from PNC and stores them in the session. The group names are classified
+     * up front: build-NNN groups are looked up by the numeric ID with a single query, because the buildContentId query
+     * misses for many of them and needs a second lookup then. The other groups and the build-NNN groups, whose build
+     * record was not found by ID or has a different buildContentId, are looked up by buildContentId with a single
+     * query.
+     *
+     * @param groupNames names of the groups, which are the buildContentIds of the wanted builds
+     * @param session cleaner session to store the results in
+     * @throws CleanerException in case of an error when loading the build records
+     */
+    void resolveBuildRecords(List<String> groupNames, FailedBuildsCleanerSession session) throws CleanerException {
+        Map<String, String> groupNamesById = new HashMap<>();
+        List<String> buildContentIds = new ArrayList<>();
+        Map<String, Build> lookedUpById = new HashMap<>();
+        for (String groupName : groupNames) {
+            Matcher matcher = buildNumPattern.matcher(groupName);
+            if (matcher.matches()) {
+                groupNamesById.put(matcher.group(1), groupName);
+            } else {
+                buildContentIds.add(groupName);
+            }
+        }
+
+        if (!groupNamesById.isEmpty()) {
+            buildContentIds.addAll(resolveBuildRecordsById(groupNamesById, lookedUpById, session));
+        }
+        if (!buildContentIds.isEmpty()) {
+            resolveBuildRecordsByContentId(buildContentIds, lookedUpById, session);
+        }
+    }
+
+    /**
+     * Loads build records for a batch of build-NNN groups from PNC by their numeric IDs using a single query and stores
+     * them in the session. Groups without a build record with the ID or with a build record with a different
+     * buildContentId are collected along with the loaded build record, because a build with a different ID can still
+     * have the buildContentId.
+     *
+     * @param groupNamesById group names indexed by the numeric ID parsed from them
+     * @param lookedUpById map to collect the build records loaded by ID, which were not stored in the session, in, null
+     *        for groups without a build record with the ID
+     * @param session cleaner session to store the results in
+     * @return names of the groups, which need to be looked up by buildContentId, because the build record with the ID
+     *         was not found or has a different buildContentId
+     * @throws CleanerException in case of an error when loading the build records
+     */
+    private List<String> resolveBuildRecordsById(
+            Map<String, String> groupNamesById,
+            Map<String, Build> lookedUpById,
+            FailedBuildsCleanerSession session) throws CleanerException {
+        String query = "id=in=(" + String.join(",", groupNamesById.keySet()) + ")";
+        logger.debug("Looking for build records with query \"{}\"", query);
+
+        List<String> byContentId = new ArrayList<>();
+        try {
+            RemoteCollection<Build> builds = lookUpInPnc(
+                    session,
+                    () -> buildClient.getAll(null, null, Optional.empty(), Optional.of(query)));
+            Set<String> found = new HashSet<>();
+            for (Build build : builds) {
+                String groupName = groupNamesById.get(build.getId());
+                if (groupName == null) {
+                    continue;
+                }
+                found.add(groupName);
+                if (build.getBuildContentId() == null || build.getBuildContentId().equals(groupName)) {
+                    session.addBuildRecord(groupName, build);
+                } else {
+                    lookedUpById.put(groupName, build);
+                    byContentId.add(groupName);
+                }
+            }
+
+            for (String groupName : groupNamesById.values()) {
+                if (!found.contains(groupName)) {
+                    warnCounter.increment();
+                    logger.warn("Build record NOT found by ID for group {}", groupName);
+                    lookedUpById.put(groupName, null);
+                    byContentId.add(groupName);
+                }
+            }
+        } catch (RemoteResourceException e) {
+            errCounter.increment();
+            throw new CleanerException(
+                    "Error when getting build records [ids=%s, status=%d].",
+                    e,
+                    groupNamesById.keySet(),
+                    e.getStatus());
+        }
+        return byContentId;
+    }
+
+    /**
+     * Loads build records for a batch of buildContentIds from PNC using a single query and stores them in the session.
+     * The buildContentIds, which did not match any build record, are looked up by the numeric ID parsed from them
+     * unless they were already looked up by the ID, then the build record loaded by the ID is used. In case multiple
+     * build records match the same id it logs an error and stores null for it as
+     * {@link #getBuildRecord(String, FailedBuildsCleanerSession)} does.
+     *
+     * @param buildContentIds ids of the wanted builds
+     * @param lookedUpById build records already loaded by the numeric ID indexed by the buildContentIds, null for those
+     *        without a build record with the ID
+     * @param session cleaner session to store the results in
+     * @throws CleanerException in case of an error when loading the build records
+     */
+    private void resolveBuildRecordsByContentId(
+            List<String> buildContentIds,
+            Map<String, Build> lookedUpById,
+            FailedBuildsCleanerSession session) throws CleanerException {
+        String query = "buildContentId=in=(" + String.join(",", buildContentIds) + ")";
+        logger.debug("Looking for build records with query \"{}\"", query);
+
+        try {
+            Map<String, List<Build>> buildsByContentId = new HashMap<>();
+            RemoteCollection<Build> builds = lookUpInPnc(
+                    session,
+                    () -> buildClient.getAll(null, null, Optional.empty(), Optional.of(query)));
+            for (Build build : builds) {
+                buildsByContentId.computeIfAbsent(build.getBuildContentId(), k -> new ArrayList<>(1)).add(build);
+            }
+
+            for (String buildContentId : buildContentIds) {
+                List<Build> matching = buildsByContentId.get(buildContentId);
+                if (matching == null && lookedUpById.containsKey(buildContentId)) {
+                    Build byId = lookedUpById.get(buildContentId);
+                    warnCounter.increment();
+                    if (byId == null) {
+                        logger.warn("Build record NOT found for buildContentId = {} nor by ID", buildContentId);
+                    } else {
+                        logger.warn(
+                                "Build record NOT found for buildContentId = {}, using build record {} found by ID",
+                                buildContentId,
+                                byId.getId());
+                    }
+                    session.addBuildRecord(buildContentId, byId);
+                } else if (matching == null) {
+                    session.addBuildRecord(buildContentId, findMissingBuildRecord(buildContentId, session));
+                } else if (matching.size() > 1) {
+                    errCounter.increment();
+                    logger.error("Multiple build records found for buildContentId = {}", buildContentId);
+                    session.addBuildRecord(buildContentId, null);
+                } else {
+                    session.addBuildRecord(buildContentId, matching.get(0));
+                }
+            }
+        } catch (RemoteResourceException e) {
+            errCounter.increment();
+            throw new CleanerException(
+                    "Error when getting build records [buildContentIds=%s, status=%d].",
+                    e,
+                    buildContentIds,
+                    e.getStatus());
+        }
+    }
+
+    /**
+     * Handles a buildContentId not matching any build record. Build records of old builds might be missing the
+     * buildContentId, so it attempts to find them by the numeric ID parsed from it.
+     *
+     * @param buildContentId id of the wanted build
+     * @param session cleaner session
+     * @return found build record or null
+     * @throws RemoteResourceException in case of an error when loading the build record
+     */
+    private Build findMissingBuildRecord(String buildContentId, FailedBuildsCleanerSession session)
+            throws RemoteResourceException {
+        warnCounter.increment();
+        logger.warn("Build record NOT found for buildContentId = {}", buildContentId);
+
+        Matcher matcher = buildNumPattern.matcher(buildContentId);
+        if (matcher.matches()) {
+            String id = matcher.group(1);
+            logger.debug("Attempting to find build record by id {}", id);
+            try {
+                return lookUpInPnc(session, () -> buildClient.getSpecific(id));
+            } catch (RemoteResourceNotFoundException e) {
+                warnCounter.increment();
+                logger.warn("Build record NOT found even by ID = {}", id);
+                return null;
+            }
+        } else {
+            errCounter.increment();
+            logger.error("Unable ot parse buildContentId={}", buildContentId);
+            return null;
+        }
+    }
+
+    /**
+     * Makes a call to PNC within the Orchestrator limit, counts it in the session and records its time.
+     *
+     * @param session cleaner session
+     * @param remoteCall the call
+     * @return value returned by the call
+     * @throws E exception thrown by the call
+     */
+    private <T, E extends Exception> T lookUpInPnc(FailedBuildsCleanerSession session, RemoteCall<T, E> remoteCall)
+            throws E {
+        session.countPncCall();
+        Timer.Sample sample = Timer.start(registry);
+        try {
+            return limiters.orch().call(remoteCall);
+        } finally {
+            sample.stop(pncLookupTimer);
+        }
+    }
+
+    /**
+     * Deletes the build hosted repository and repo group from Indy if it exists. The existence is checked against the
+     * store snapshot taken at the beginning of the session. If there is no snapshot, the deletes are issued blindly.
      *
      * @param pkgKey package key
      * @param repoName repository name
-     * @param stores Indy stores client module
+     * @param session cleaner session
      * @throws IndyClientException in case of an error happening in Indy
      */
-    @Timed
-    private void deleteGroupAndHostedRepo(String pkgKey, String repoName, IndyStoresClientModule stores)
+    private void deleteGroupAndHostedRepo(String pkgKey, String repoName, FailedBuildsCleanerSession session)
             throws IndyClientException {
         StoreKey groupKey = new StoreKey(pkgKey, StoreType.group, repoName);
-        if (stores.exists(groupKey)) {
+        if (session.mayExist(groupKey)) {
             logger.trace("{} group {} exists - deleting...", pkgKey, repoName);
-            stores.delete(groupKey, "Scheduled cleanup of failed builds.");
+            deleteStore(groupKey, session.getStores());
         }
 
         StoreKey storeKey = new StoreKey(pkgKey, StoreType.hosted, repoName);
-        if (stores.exists(storeKey)) {
+        if (session.mayExist(storeKey)) {
             logger.trace("{} hosted repo {} exists - deleting...", pkgKey, repoName);
-            stores.delete(storeKey, "Scheduled cleanup of failed builds.");
+            deleteStore(storeKey, session.getStores());
+        }
+    }
+
+    /**
+     * Clears the tracking record of the build from Indy.
+     *
+     * @param groupName the cleaned group name, which is also the tracking record ID
+     * @param foloAdmin Indy folo admin client module
+     * @throws IndyClientException in case of an error happening in Indy
+     */
+    private void clearTrackingRecord(String groupName, IndyFoloAdminClientModule foloAdmin) throws IndyClientException {
+        Timer.Sample sample = Timer.start(registry);
+        try {
+            limiters.indy().run(() -> foloAdmin.clearTrackingRecord(groupName));
+        } finally {
+            sample.stop(foloClearTimer);
+        }
+    }
+
+    /**
+     * Deletes the store from Indy. A store, which does not exist anymore, is considered as successfully deleted.
+     *
+     * @param storeKey key of the deleted store
+     * @param stores Indy stores client module
+     * @throws IndyClientException in case of an error happening in Indy
+     */
+    private void deleteStore(StoreKey storeKey, IndyStoresClientModule stores) throws IndyClientException {
+        Timer.Sample sample = Timer.start(registry);
+        try {
+            limiters.indy().run(() -> stores.delete(storeKey, "Scheduled cleanup of failed builds."));
+        } catch (IndyClientException e) {
+            if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+                throw e;
+            }
+            logger.debug("Store {} does not exist anymore.", storeKey);
+        } finally {
+            sample.stop(indyDeleteTimer);
         }
     }
 }
@@ -0,0 +1,240 @@
+package org.jboss.pnc.cleaner.builds;
+
+import org.jboss.pnc.cleaner.common.AppendOnlyLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only checkpoint journal of a failed builds cleanup run. It records the clean decision and the completed
+ * cleanup of every processed group, so an interrupted run can be resumed without repeating the work already done. The
+ * journal is kept in a local file named by the run limit timestamp and it is compacted when the run completes. Every
+ * shard of a sharded run has its own journal file, so the shards are completed independently.
+ * <p>
+ * The file contains one record per line:
+ * <ul>
+ * <li><code>D 1 &lt;groupName&gt;</code> - the group was decided to be cleaned</li>
+ * <li><code>D 0 &lt;groupName&gt;</code> - the group was decided to be kept</li>
+ * <li><code>C &lt;groupName&gt;</code> - the group was cleaned</li>
+ * <li><code>END</code> - the run completed</li>
+ * </ul>
+ */
+public class FailedBuildsCleanerJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FailedBuildsCleanerJournal.class);
+
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("failed-builds-(\\d+)(-shard-\\d+)?\\.journal");
+
+    private static final String END_RECORD = "END";
+
+    private final Path file;
+
+    private final Instant limit;
+
+    /** Suffix of the file name identifying the shard, empty for a run without sharding. */
+    private final String shardSuffix;
+
+    private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+    private final Set<String> completed = ConcurrentHashMap.newKeySet();
+
+    private AppendOnlyLog log;
+
+    private boolean finished;
+
+    private FailedBuildsCleanerJournal(Path file, Instant limit, String shardSuffix) {
+        this.file = file;
+        this.limit = limit;
+        this.shardSuffix = shardSuffix;
+    }
+
+    /**
+     * Creates a journal, which does not record anything. It is used when the journal directory is not configured.
+     *
+     * @return the disabled journal
+     */
+    public static FailedBuildsCleanerJournal disabled() {
+        return new FailedBuildsCleanerJournal(null, null, "");
+    }
+
+    /**
+     * Opens the journal of a run with the given limit. If the journal file already exists, its records are loaded and
+     * new records are appended to it.
+     *
+     * @param dir directory with journal files
+     * @param limit the run limit timestamp
+     * @return the opened journal
+     * @throws IOException in case of an error when reading or opening the journal file
+     */
+    public static FailedBuildsCleanerJournal open(Path dir, Instant limit) throws IOException {
+        return open(dir, limit, "");
+    }
+
+    /**
+     * Opens the journal of a shard of a run with the given limit. If the journal file already exists, its records are
+     * loaded and new records are appended to it.
+     *
+     * @param dir directory with journal files
+     * @param limit the run limit timestamp
+     * @param shard index of the shard
+     * @return the opened journal
+     * @throws IOException in case of an error when reading or opening the journal file
+     */
+    public static FailedBuildsCleanerJournal open(Path dir, Instant limit, int shard) throws IOException {
+        return open(dir, limit, "-shard-" + shard);
+    }
+
+    private static FailedBuildsCleanerJournal open(Path dir, Instant limit, String shardSuffix) throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve("failed-builds-" + limit.toEpochMilli() + shardSuffix + ".journal");
+        FailedBuildsCleanerJournal journal = new FailedBuildsCleanerJournal(file, limit, shardSuffix);
+        if (Files.exists(journal.file)) {
+            journal.load();
+            logger.info(
+                    "Resuming failed builds cleanup journal {} with {} decided and {} cleaned groups.",
+                    journal.file,
+                    journal.decisions.size(),
+                    journal.completed.size());
+        }
+        journal.log = AppendOnlyLog.open(journal.file, "failed builds cleanup journal");
+        return journal;
+    }
+
+    /**
+     * Finds the latest run, which was interrupted before it completed. A sharded run is unfinished if any of its shard
+     * journals is.
+     *
+     * @param dir directory with journal files
+     * @return limit timestamp of the interrupted run, empty if there is none
+     * @throws IOException in case of an error when reading the journal files
+     */
+    public static Optional<Instant> findUnfinishedRun(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Optional.empty();
+        }
+        Instant latest = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "failed-builds-*.journal")) {
+            for (Path journalFile : files) {
+                Matcher matcher = FILE_NAME_PATTERN.matcher(journalFile.getFileName().toString());
+                if (matcher.matches() && !isFinished(journalFile)) {
+                    Instant limit = Instant.ofEpochMilli(Long.parseLong(matcher.group(1)));
+                    if (latest == null || limit.isAfter(latest)) {
+                        latest = limit;
+                    }
+                }
+            }
+        }
+        return Optional.ofNullable(latest);
+    }
+
+    /**
+     * Gets the recorded decision for the group.
+     *
+     * @param groupName the group name
+     * @return true if the group should be cleaned, false if kept, null if not decided yet
+     */
+    public Boolean getDecision(String groupName) {
+        return decisions.get(groupName);
+    }
+
+    /**
+     * @return true if the journal was already completed when it was opened, so the run or shard needs no more work
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public boolean isCompleted(String groupName) {
+        return completed.contains(groupName);
+    }
+
+    public void recordDecision(String groupName, boolean clean) {
+        if (file != null) {
+            decisions.put(groupName, clean);
+            append("D " + (clean ? "1 " : "0 ") + groupName);
+        }
+    }
+
+    public void recordCompleted(String groupName) {
+        if (file != null) {
+            completed.add(groupName);
+            append("C " + groupName);
+        }
+    }
+
+    /**
+     * Marks the run or shard as completed and compacts the journal to a single end record. Journals of other runs of
+     * the same shard and journals of older runs are deleted, because they are either finished or superseded by this
+     * run. Journals of other shards of this run are kept, as those shards may still be in progress.
+     */
+    public synchronized void complete() {
+        if (file == null) {
+            return;
+        }
+        log.rewrite(List.of("# decided=" + decisions.size() + " cleaned=" + completed.size(), END_RECORD));
+        try {
+            close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(file.getParent(), "failed-builds-*.journal")) {
+                for (Path journalFile : files) {
+                    Matcher matcher = FILE_NAME_PATTERN.matcher(journalFile.getFileName().toString());
+                    if (!matcher.matches() || journalFile.equals(file)) {
+                        continue;
+                    }
+                    String otherShardSuffix = matcher.group(2) == null ? "" : matcher.group(2);
+                    if (otherShardSuffix.equals(shardSuffix)
+                            || Long.parseLong(matcher.group(1)) < limit.toEpochMilli()) {
+                        Files.deleteIfExists(journalFile);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to compact failed builds cleanup journal " + file + ".", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private void append(String record) {
+        if (log != null) {
+            log.append(record);
+        }
+    }
+
+    private void load() throws IOException {
+        for (String line : AppendOnlyLog.readRecords(file)) {
+            String[] parts = line.split(" ");
+            if (parts.length == 3 && parts[0].equals("D")) {
+                decisions.put(parts[2], parts[1].equals("1"));
+            } else if (parts.length == 2 && parts[0].equals("C")) {
+                completed.add(parts[1]);
+            } else if (line.equals(END_RECORD)) {
+                finished = true;
+            }
+        }
+    }
+
+    private static boolean isFinished(Path journalFile) throws IOException {
+        List<String> lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+        return !lines.isEmpty() && lines.get(lines.size() - 1).equals(END_RECORD);
+    }
+
+}
@@ -1,47 +1,90 @@
 package org.jboss.pnc.cleaner.builds;
 
-import io.micrometer.core.annotation.Timed;
 import io.micrometer.core.instrument.Counter;
-import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.commonjava.indy.client.core.Indy;
 import org.commonjava.indy.client.core.IndyClientException;
 import org.commonjava.indy.client.core.module.IndyStoresClientModule;
 import org.commonjava.indy.folo.client.IndyFoloAdminClientModule;
 import org.commonjava.indy.model.core.Group;
-import org.commonjava.indy.model.core.dto.StoreListingDTO;
+import org.commonjava.indy.model.core.StoreKey;
+import org.jboss.pnc.cleaner.common.AdaptiveConcurrencyLimiter;
+import org.jboss.pnc.cleaner.common.AdaptiveConcurrencyLimiter.RemoteAction;
+import org.jboss.pnc.dto.Build;
 
-import javax.annotation.PostConstruct;
-import javax.inject.Inject;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.commonjava.indy.model.core.GenericPackageTypeDescriptor.GENERIC_PKG_KEY;
 
 public class FailedBuildsCleanerSession {
 
-    private static final String className = FailedBuildsCleanerSession.class.getName();
+    private final IndyFoloAdminClientModule foloAdmin;
+    private final IndyStoresClientModule stores;
+    private final IndyStoreListingClientModule listing;
 
-    private IndyFoloAdminClientModule foloAdmin;
-    private IndyStoresClientModule stores;
+    /** Keys of generic-http groups and their constituents indexed by buildContentId. */
+    private Map<String, List<StoreKey>> genericReposIndex;
 
-    private List<Group> genericGroups;
+    /** Timer of the generic-http group listing, null if the listing is not timed. */
+    private Timer listingTimer;
 
-    private Instant to;
+    /** Limiter of calls to Indy the generic-http group listing goes through, null if the listing is not limited. */
+    private AdaptiveConcurrencyLimiter listingLimiter;
 
-    @Inject
-    MeterRegistry registry;
+    /** Build records resolved in batches, the empty value means the group has no usable build record. */
+    private final Map<String, Optional<Build>> buildRecords = new ConcurrentHashMap<>();
 
-    private Counter errCounter;
+    /** Snapshot of existing Maven build groups and hosted repositories, null if not known. */
+    private Set<StoreKey> existingStores;
 
-    @PostConstruct
-    void initMetrics() {
-        errCounter = registry.counter(className + ".error.count");
-    }
+    private FailedBuildsCleanerJournal journal = FailedBuildsCleanerJournal.disabled();
+
+    private FailedBuildsDecisionCache decisionCache = FailedBuildsDecisionCache.disabled();
+
+    /** Old enough failed builds loaded from PNC in reverse-join mode, null if not loaded. */
+    private FailedBuildsIdSet failedBuilds;
+
+    /** Deletion plan written instead of deleting anything in dry-run mode, null in a regular run. */
+    private FailedBuildsCleanupPlan plan;
+
+    /** Point in time when the run stops processing groups, null if the run is not limited. */
+    private Instant deadline;
+
+    /** Number of groups left unprocessed because of the deadline. */
+    private final AtomicInteger carriedOver = new AtomicInteger();
+
+    /** End times of failed builds decided to be cleaned, which were not cleaned yet, indexed by group name. */
+    private final Map<String, Instant> dueBuilds = new ConcurrentHashMap<>();
+
+    /** Number of calls made to PNC to decide about the groups. */
+    private final AtomicInteger pncCalls = new AtomicInteger();
+
+    private final Instant to;
 
-    public FailedBuildsCleanerSession(Indy indyClient, Instant to) {
+    private final Counter errCounter;
+
+    /**
+     * @param indyClient client of Indy
+     * @param to builds ended before this time are cleaned
+     * @param errCounter counter of errors, the session is not a CDI bean, so the counter is passed in by the cleaner
+     */
+    public FailedBuildsCleanerSession(Indy indyClient, Instant to, Counter errCounter) {
+        this.errCounter = errCounter;
         try {
             this.stores = indyClient.stores();
             this.foloAdmin = indyClient.module(IndyFoloAdminClientModule.class);
+            this.listing = indyClient.module(IndyStoreListingClientModule.class);
         } catch (IndyClientException e) {
             errCounter.increment();
             throw new RuntimeException("Unable to retrieve Indy client module: " + e, e);
@@ -49,24 +92,187 @@ public class FailedBuildsCleanerSession {
         this.to = to;
     }
 
-    @Timed
-    public List<Group> getGenericGroups() {
-        if (genericGroups == null) {
+    /**
+     * Finds store keys of generic-http groups created for the given build along with keys of their constituents. The
+     * generic-http group listing is streamed from Indy and indexed by buildContentId on the first call. It is safe to
+     * be called from multiple cleanup workers at once.
+     *
+     * @param buildContentId the build content ID
+     * @return the list of matching store keys, might be empty, never null
+     */
+    public List<StoreKey> getGenericRepos(String buildContentId) {
+        return getGenericReposIndex().getOrDefault(buildContentId, Collections.emptyList());
+    }
+
+    private synchronized Map<String, List<StoreKey>> getGenericReposIndex() {
+        if (genericReposIndex == null) {
+            long start = System.nanoTime();
             try {
-                StoreListingDTO<Group> groupListing = stores.listGroups(GENERIC_PKG_KEY);
-                genericGroups = groupListing.getItems();
+                Map<String, List<StoreKey>> index = new HashMap<>();
+                RemoteAction<IndyClientException> loadIndex = () -> listing
+                        .forEachGroup(GENERIC_PKG_KEY, n -> n.startsWith("g-"), g -> indexGenericGroup(index, g));
+                if (listingLimiter != null) {
+                    listingLimiter.runListing(loadIndex);
+                } else {
+                    loadIndex.run();
+                }
+                genericReposIndex = index;
             } catch (IndyClientException e) {
                 errCounter.increment();
                 throw new RuntimeException("Error in loading generic http groups: " + e, e);
+            } finally {
+                if (listingTimer != null) {
+                    listingTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
             }
         }
-        return genericGroups;
+        return genericReposIndex;
+    }
+
+    /**
+     * Indexes a generic-http group named "g-&lt;host&gt;-&lt;buildContentId&gt;" by the buildContentId. The host part
+     * can contain dashes too, so the group is indexed under every "build..." suffix following a dash, which matches any
+     * buildContentId the group name ends with. Only the store keys are kept from the loaded group.
+     *
+     * @param index map of buildContentId to keys of the matching groups and their constituents
+     * @param genericGroup the loaded generic-http group
+     */
+    private static void indexGenericGroup(Map<String, List<StoreKey>> index, Group genericGroup) {
+        String name = genericGroup.getName();
+        if (!name.startsWith("g-")) {
+            return;
+        }
+        for (int i = name.indexOf('-'); i >= 0; i = name.indexOf('-', i + 1)) {
+            if (name.startsWith("build", i + 1)) {
+                List<StoreKey> keys = index.computeIfAbsent(name.substring(i + 1), k -> new ArrayList<>(3));
+                keys.add(genericGroup.getKey());
+                keys.addAll(genericGroup.getConstituents());
+            }
+        }
+    }
+
+    public void setListingTimer(Timer listingTimer) {
+        this.listingTimer = listingTimer;
+    }
+
+    public void setListingLimiter(AdaptiveConcurrencyLimiter listingLimiter) {
+        this.listingLimiter = listingLimiter;
+    }
+
+    public void addBuildRecord(String buildContentId, Build build) {
+        buildRecords.put(buildContentId, Optional.ofNullable(build));
+    }
+
+    public boolean hasBuildRecord(String buildContentId) {
+        return buildRecords.containsKey(buildContentId);
+    }
+
+    public Build getBuildRecord(String buildContentId) {
+        return buildRecords.getOrDefault(buildContentId, Optional.empty()).orElse(null);
+    }
+
+    public void forgetBuildRecord(String buildContentId) {
+        buildRecords.remove(buildContentId);
+    }
+
+    public void setExistingStores(Set<StoreKey> existingStores) {
+        this.existingStores = existingStores == null ? null : Collections.unmodifiableSet(existingStores);
+    }
+
+    /**
+     * Checks the store against the snapshot of existing stores. Without a snapshot every store may exist.
+     *
+     * @param storeKey the checked store key
+     * @return false if the store is known not to exist, true otherwise
+     */
+    public boolean mayExist(StoreKey storeKey) {
+        return existingStores == null || existingStores.contains(storeKey);
+    }
+
+    public FailedBuildsCleanerJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(FailedBuildsCleanerJournal journal) {
+        this.journal = journal;
+    }
+
+    public FailedBuildsDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    public void setDecisionCache(FailedBuildsDecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    public FailedBuildsIdSet getFailedBuilds() {
+        return failedBuilds;
+    }
+
+    public void setFailedBuilds(FailedBuildsIdSet failedBuilds) {
+        this.failedBuilds = failedBuilds;
+    }
+
+    public boolean isDryRun() {
+        return plan != null;
+    }
+
+    public FailedBuildsCleanupPlan getPlan() {
+        return plan;
+    }
+
+    public void setPlan(FailedBuildsCleanupPlan plan) {
+        this.plan = plan;
+    }
+
+    public void setDeadline(Instant deadline) {
+        this.deadline = deadline;
+    }
+
+    public boolean isPastDeadline() {
+        return deadline != null && Instant.now().isAfter(deadline);
+    }
+
+    public void addCarriedOver(int groupCount) {
+        carriedOver.addAndGet(groupCount);
+    }
+
+    public int getCarriedOver() {
+        return carriedOver.get();
+    }
+
+    public void addDueBuild(String groupName, Instant endTime) {
+        dueBuilds.put(groupName, endTime);
+    }
+
+    public void removeDueBuild(String groupName) {
+        dueBuilds.remove(groupName);
+    }
+
+    /**
+     * @return end time of the oldest failed build decided to be cleaned, which was not cleaned yet, or null if there is
+     *         none
+     */
+    public Instant getOldestDueBuildEndTime() {
+        return dueBuilds.values().stream().min(Comparator.naturalOrder()).orElse(null);
+    }
+
+    public void countPncCall() {
+        pncCalls.incrementAndGet();
+    }
+
+    public int getPncCalls() {
+        return pncCalls.get();
     }
 
     public IndyFoloAdminClientModule getFoloAdmin() {
         return foloAdmin;
     }
 
+    public IndyStoreListingClientModule getListing() {
+        return listing;
+    }
+
     public IndyStoresClientModule getStores() {
         return stores;
     }
@@ -0,0 +1,137 @@
+package org.jboss.pnc.cleaner.builds;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.commonjava.indy.model.core.StoreKey;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Deletion plan of a failed builds cleanup run made in dry-run mode. It lists the groups, which should be cleaned, and
+ * the keys of all stores to be deleted for each of them, so the plan can be executed later without loading anything
+ * from PNC or Indy listings. The plan is written as JSON lines, one {@link Entry} per line, to a temporary file, which
+ * replaces the plan file when the plan is committed.
+ */
+public class FailedBuildsCleanupPlan implements Closeable {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Path file;
+
+    private final Path tmpFile;
+
+    private final BufferedWriter writer;
+
+    private int groupCount;
+
+    private int storeCount;
+
+    private FailedBuildsCleanupPlan(Path file) throws IOException {
+        this.file = file;
+        this.tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a new empty plan, which will be written to the given file.
+     *
+     * @param file the plan file
+     * @return the created plan
+     * @throws IOException in case of an error when creating the plan file
+     */
+    public static FailedBuildsCleanupPlan create(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        return new FailedBuildsCleanupPlan(file.toAbsolutePath());
+    }
+
+    /**
+     * Reads entries of a committed plan.
+     *
+     * @param file the plan file
+     * @return the planned entries
+     * @throws IOException in case of an error when reading or parsing the plan file
+     */
+    public static List<Entry> read(Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    entries.add(mapper.readValue(line, Entry.class));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Adds the cleanup of a group to the plan.
+     *
+     * @param groupName the cleaned group name
+     * @param storeKeys keys of all stores to be deleted for the group
+     * @throws IOException in case of an error when writing the plan file
+     */
+    public synchronized void add(String groupName, List<StoreKey> storeKeys) throws IOException {
+        List<String> stores = storeKeys.stream().map(StoreKey::toString).collect(Collectors.toList());
+        writer.write(mapper.writeValueAsString(new Entry(groupName, stores)));
+        writer.newLine();
+        groupCount++;
+        storeCount += stores.size();
+    }
+
+    public synchronized int getGroupCount() {
+        return groupCount;
+    }
+
+    public synchronized int getStoreCount() {
+        return storeCount;
+    }
+
+    /**
+     * Finishes the plan and atomically replaces the plan file with it.
+     *
+     * @throws IOException in case of an error when writing the plan file
+     */
+    public synchronized void commit() throws IOException {
+        writer.close();
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Closes the plan. An uncommitted plan is discarded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+        Files.deleteIfExists(tmpFile);
+    }
+
+    /**
+     * Planned cleanup of a single group.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+
+        /** Name of the cleaned group, which is also the tracking record ID. */
+        private String group;
+
+        /** Keys of stores to be deleted. */
+        private List<String> stores;
+    }
+
+}
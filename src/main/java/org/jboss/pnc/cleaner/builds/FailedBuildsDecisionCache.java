@@ -0,0 +1,107 @@
+package org.jboss.pnc.cleaner.builds;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of buildContentIds, which belong to builds that will never be cleaned. These are persistent builds
+ * in a final state other than one of the failed states, so their status cannot change anymore and their groups never
+ * need to be checked in PNC again. The cache is kept in a local file with one buildContentId per line. Entries of
+ * groups that disappeared from Indy are evicted.
+ */
+public class FailedBuildsDecisionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(FailedBuildsDecisionCache.class);
+
+    private final Path file;
+
+    private final Set<String> keptBuildContentIds = ConcurrentHashMap.newKeySet();
+
+    private FailedBuildsDecisionCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates a cache, which does not remember anything. It is used when the cache file is not configured.
+     *
+     * @return the disabled cache
+     */
+    public static FailedBuildsDecisionCache disabled() {
+        return new FailedBuildsDecisionCache(null);
+    }
+
+    /**
+     * Loads the cache from the given file. If the file does not exist, the cache is empty.
+     *
+     * @param file the cache file
+     * @return the loaded cache
+     * @throws IOException in case of an error when reading the file
+     */
+    public static FailedBuildsDecisionCache load(Path file) throws IOException {
+        FailedBuildsDecisionCache cache = new FailedBuildsDecisionCache(file);
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    cache.keptBuildContentIds.add(line);
+                }
+            }
+        }
+        return cache;
+    }
+
+    public boolean contains(String buildContentId) {
+        return keptBuildContentIds.contains(buildContentId);
+    }
+
+    public void add(String buildContentId) {
+        if (file != null) {
+            keptBuildContentIds.add(buildContentId);
+        }
+    }
+
+    public int size() {
+        return keptBuildContentIds.size();
+    }
+
+    /**
+     * Evicts entries of groups, which do not exist anymore.
+     *
+     * @param groupNames names of all existing build groups
+     * @return number of evicted entries
+     */
+    public int retainExisting(Collection<String> groupNames) {
+        int before = keptBuildContentIds.size();
+        keptBuildContentIds.retainAll(new HashSet<>(groupNames));
+        return before - keptBuildContentIds.size();
+    }
+
+    /**
+     * Writes the cache to its file. The file is replaced atomically, so an interrupted write keeps the previous
+     * content.
+     */
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.write(tmp, keptBuildContentIds, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Failed to save failed builds decision cache " + file + ".", e);
+        }
+    }
+
+}
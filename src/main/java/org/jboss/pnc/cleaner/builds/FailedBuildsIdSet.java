@@ -0,0 +1,141 @@
+package org.jboss.pnc.cleaner.builds;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compact set of buildContentIds of old enough failed builds loaded from PNC in one go along with the end times of the
+ * builds. The buildContentIds of the "build-NNN" format, which are the vast majority, are kept as a sorted array of the
+ * numbers with a parallel array of the end times in millis, the other ones are kept as strings. The set is filled first
+ * and sealed before it is queried.
+ */
+public class FailedBuildsIdSet {
+
+    private static final Pattern buildNumPattern = Pattern.compile("build-([1-9]\\d{0,17})");
+
+    /** Marks an unknown end time in the end times array. */
+    private static final long NO_END_TIME = Long.MIN_VALUE;
+
+    private final Map<String, Instant> otherIds = new HashMap<>();
+
+    private long[] buildNums = new long[1024];
+
+    private long[] endTimes = new long[1024];
+
+    private int size;
+
+    private boolean sealed;
+
+    /**
+     * Adds a buildContentId to the set.
+     *
+     * @param buildContentId the buildContentId, null is ignored
+     * @param endTime end time of the build, can be null
+     */
+    public synchronized void add(String buildContentId, Instant endTime) {
+        if (sealed) {
+            throw new IllegalStateException("Failed builds set is already sealed.");
+        }
+        if (buildContentId == null) {
+            return;
+        }
+        Matcher matcher = buildNumPattern.matcher(buildContentId);
+        if (matcher.matches()) {
+            if (size == buildNums.length) {
+                buildNums = Arrays.copyOf(buildNums, size * 2);
+                endTimes = Arrays.copyOf(endTimes, size * 2);
+            }
+            buildNums[size] = Long.parseLong(matcher.group(1));
+            endTimes[size] = endTime == null ? NO_END_TIME : endTime.toEpochMilli();
+            size++;
+        } else {
+            otherIds.put(buildContentId, endTime);
+        }
+    }
+
+    /**
+     * Finishes filling of the set, so it can be queried.
+     */
+    public synchronized void seal() {
+        buildNums = Arrays.copyOf(buildNums, size);
+        endTimes = Arrays.copyOf(endTimes, size);
+        sort();
+        sealed = true;
+    }
+
+    public synchronized boolean contains(String buildContentId) {
+        checkSealed();
+        Matcher matcher = buildNumPattern.matcher(buildContentId);
+        if (matcher.matches()) {
+            return Arrays.binarySearch(buildNums, Long.parseLong(matcher.group(1))) >= 0;
+        }
+        return otherIds.containsKey(buildContentId);
+    }
+
+    /**
+     * Gets the end time of the build with the buildContentId.
+     *
+     * @param buildContentId the buildContentId
+     * @return the end time or null if the build is not in the set or its end time is not known
+     */
+    public synchronized Instant getEndTime(String buildContentId) {
+        checkSealed();
+        Matcher matcher = buildNumPattern.matcher(buildContentId);
+        if (matcher.matches()) {
+            int i = Arrays.binarySearch(buildNums, Long.parseLong(matcher.group(1)));
+            return i < 0 || endTimes[i] == NO_END_TIME ? null : Instant.ofEpochMilli(endTimes[i]);
+        }
+        return otherIds.get(buildContentId);
+    }
+
+    public synchronized int size() {
+        return size + otherIds.size();
+    }
+
+    private void checkSealed() {
+        if (!sealed) {
+            throw new IllegalStateException("Failed builds set is not sealed yet.");
+        }
+    }
+
+    /**
+     * Sorts the build numbers along with the end times by an in-place heap sort, so no boxed copy of the arrays is
+     * needed.
+     */
+    private void sort() {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i, size);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int root, int end) {
+        for (int child = 2 * root + 1; child < end; child = 2 * root + 1) {
+            if (child + 1 < end && buildNums[child + 1] > buildNums[child]) {
+                child++;
+            }
+            if (buildNums[root] >= buildNums[child]) {
+                return;
+            }
+            swap(root, child);
+            root = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long buildNum = buildNums[i];
+        buildNums[i] = buildNums[j];
+        buildNums[j] = buildNum;
+        long endTime = endTimes[i];
+        endTimes[i] = endTimes[j];
+        endTimes[j] = endTime;
+    }
+
+}
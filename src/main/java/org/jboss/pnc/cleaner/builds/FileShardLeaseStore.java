@@ -0,0 +1,96 @@
+package org.jboss.pnc.cleaner.builds;
+
+import io.quarkus.arc.DefaultBean;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Shard lease store keeping the leases in local files, one file per shard containing the owner and the expiration time.
+ * The leases are changed under an exclusive lock of a lock file, so it coordinates replicas running on a single host or
+ * sharing the lease directory. It is the default store used when no other implementation is provided.
+ */
+@DefaultBean
+@ApplicationScoped
+public class FileShardLeaseStore implements ShardLeaseStore {
+
+    private static final String LOCK_FILE = "shards.lock";
+
+    /** Directory with the lease files, the temporary directory is used if not set. */
+    @ConfigProperty(name = "failedbuildscleaner.shard.leasedir")
+    Optional<String> leaseDir;
+
+    @Override
+    public synchronized boolean tryAcquire(int shard, String owner, Duration leaseTime) throws CleanerException {
+        try {
+            return withLock(() -> {
+                Path leaseFile = getLeaseFile(shard);
+                if (Files.exists(leaseFile)) {
+                    String[] lease = Files.readString(leaseFile, StandardCharsets.UTF_8).trim().split(" ", 2);
+                    Instant expiresAt = Instant.ofEpochMilli(Long.parseLong(lease[0]));
+                    if (expiresAt.isAfter(Instant.now()) && !lease[1].equals(owner)) {
+                        return false;
+                    }
+                }
+                String lease = Instant.now().plus(leaseTime).toEpochMilli() + " " + owner;
+                Files.write(leaseFile, lease.getBytes(StandardCharsets.UTF_8));
+                return true;
+            });
+        } catch (IOException | RuntimeException e) {
+            throw new CleanerException("Error when acquiring lease of shard %d.", e, shard);
+        }
+    }
+
+    @Override
+    public synchronized void release(int shard, String owner) throws CleanerException {
+        try {
+            withLock(() -> {
+                Path leaseFile = getLeaseFile(shard);
+                if (Files.exists(leaseFile)) {
+                    String[] lease = Files.readString(leaseFile, StandardCharsets.UTF_8).trim().split(" ", 2);
+                    if (lease[1].equals(owner)) {
+                        Files.delete(leaseFile);
+                    }
+                }
+                return null;
+            });
+        } catch (IOException | RuntimeException e) {
+            throw new CleanerException("Error when releasing lease of shard %d.", e, shard);
+        }
+    }
+
+    private <T> T withLock(LockedAction<T> action) throws IOException {
+        Path dir = getLeaseDir();
+        Files.createDirectories(dir);
+        try (FileChannel channel = FileChannel
+                .open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock()) {
+            return action.run();
+        }
+    }
+
+    private Path getLeaseFile(int shard) {
+        return getLeaseDir().resolve("shard-" + shard + ".lease");
+    }
+
+    private Path getLeaseDir() {
+        return Paths.get(leaseDir.orElse(System.getProperty("java.io.tmpdir")), "cleaner-shards");
+    }
+
+    @FunctionalInterface
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.jboss.pnc.cleaner.builds;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.commonjava.indy.client.core.Indy;
+import org.commonjava.indy.client.core.IndyClientException;
+import org.commonjava.indy.client.core.IndyClientModule;
+import org.commonjava.indy.folo.client.IndyFoloAdminClientModule;
+import org.commonjava.indy.folo.client.IndyFoloContentClientModule;
+import org.commonjava.indy.model.core.io.IndyObjectMapper;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.pnc.cleaner.auth.KeycloakServiceClient;
+import org.jboss.pnc.cleaner.auth.ServiceAccountIndyAuthenticator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holder of the Indy client shared by all cleanup runs. The client is created on the first use and it keeps its
+ * connection pool for the whole application life, so the runs don't pay for the client and connection setup. Requests
+ * are authenticated with a service account token fetched for every request.
+ */
+@ApplicationScoped
+public class IndyClientHolder {
+
+    private static final String className = IndyClientHolder.class.getName();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Inject
+    KeycloakServiceClient serviceClient;
+
+    /** Base URL of Indy. */
+    @ConfigProperty(name = "failedbuildscleaner.indyurl")
+    String indyUrl;
+
+    @ConfigProperty(name = "failedbuildscleaner.indy.requesttimeout")
+    int indyRequestTimeout;
+
+    /** Size of the Indy connection pool. */
+    @ConfigProperty(name = "failedbuildscleaner.indy.maxconnections", defaultValue = "4")
+    int maxConnections;
+
+    @Inject
+    MeterRegistry registry;
+
+    private Counter errCounter;
+
+    private Indy indy;
+
+    @PostConstruct
+    void initMetrics() {
+        errCounter = registry.counter(className + ".error.count");
+    }
+
+    /**
+     * Gets the shared Indy client. It is created on the first call.
+     *
+     * @return the Indy client
+     */
+    public synchronized Indy getIndy() {
+        if (indy == null) {
+            logger.info("Initializing Indy client with {} connections.", maxConnections);
+            indy = createIndy();
+        }
+        return indy;
+    }
+
+    private Indy createIndy() {
+        try {
+            SiteConfig siteConfig = new SiteConfigBuilder("indy", indyUrl).withRequestTimeoutSeconds(indyRequestTimeout)
+                    .withMaxConnections(maxConnections)
+                    .build();
+
+            IndyClientModule[] modules = new IndyClientModule[] {
+                    new IndyFoloAdminClientModule(),
+                    new IndyFoloContentClientModule(),
+                    new IndyStoreListingClientModule() };
+
+            Map<String, String> mdcCopyMappings = new HashMap<>(); // TODO fill in these if needed
+            return new Indy(
+                    siteConfig,
+                    new ServiceAccountIndyAuthenticator(serviceClient),
+                    new IndyObjectMapper(true),
+                    mdcCopyMappings,
+                    modules);
+        } catch (IndyClientException e) {
+            errCounter.increment();
+            throw new IllegalStateException("Failed to create Indy client: " + e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    synchronized void close() {
+        if (indy != null) {
+            indy.close();
+            indy = null;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.jboss.pnc.cleaner.builds;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.commonjava.indy.client.core.IndyClientException;
+import org.commonjava.indy.client.core.IndyClientModule;
+import org.commonjava.indy.client.core.helper.HttpResources;
+import org.commonjava.indy.client.core.util.UrlUtils;
+import org.commonjava.indy.model.core.Group;
+import org.commonjava.indy.model.core.StoreType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Indy client module reading store listings with the Jackson streaming API. The listings of a large Indy contain
+ * hundreds of thousands of stores, so instead of loading the whole {@code StoreListingDTO} the items are parsed one by
+ * one and only the data accepted by the caller are kept.
+ */
+public class IndyStoreListingClientModule extends IndyClientModule {
+
+    private static final String STORES_PATH = "admin/stores";
+
+    private static final String ITEMS_FIELD = "items";
+
+    private static final String NAME_FIELD = "name";
+
+    /**
+     * Lists names of stores of the given package and store type matching the filter. Only the names are read from the
+     * listing, the rest of every item is skipped.
+     *
+     * @param pkgKey package type key
+     * @param type store type
+     * @param filter filter of the store names
+     * @return the matching store names, can be empty, never <code>null</code>
+     * @throws IndyClientException in case of an error when loading or parsing the listing
+     */
+    public List<String> listStoreNames(String pkgKey, StoreType type, Predicate<String> filter)
+            throws IndyClientException {
+        List<String> result = new ArrayList<>();
+        readItems(pkgKey, type, parser -> {
+            String name = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (NAME_FIELD.equals(field)) {
+                    name = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (name != null && filter.test(name)) {
+                result.add(name);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Passes groups of the given package type with names matching the filter to the consumer. The groups are
+     * deserialized one at a time, so only the data retained by the consumer stay in memory.
+     *
+     * @param pkgKey package type key
+     * @param filter filter of the group names
+     * @param consumer consumer of the matching groups
+     * @throws IndyClientException in case of an error when loading or parsing the listing
+     */
+    public void forEachGroup(String pkgKey, Predicate<String> filter, Consumer<Group> consumer)
+            throws IndyClientException {
+        readItems(pkgKey, StoreType.group, parser -> {
+            ObjectNode item = parser.readValueAsTree();
+            if (item.hasNonNull(NAME_FIELD) && filter.test(item.get(NAME_FIELD).asText())) {
+                consumer.accept(getObjectMapper().treeToValue(item, Group.class));
+            }
+        });
+    }
+
+    /**
+     * Loads the store listing and calls the item reader for every item in it. The reader is called with the parser
+     * positioned at the start of the item object and it has to consume the whole object.
+     */
+    private void readItems(String pkgKey, StoreType type, ItemReader reader) throws IndyClientException {
+        String path = UrlUtils.buildUrl(STORES_PATH, pkgKey, type.singularEndpointName());
+        try (HttpResources resources = getHttp()
+                .getRaw(path, Collections.singletonMap(HttpHeaders.ACCEPT, "application/json"))) {
+            int status = resources.getStatusCode();
+            if (status != HttpStatus.SC_OK) {
+                throw new IndyClientException(status, "Error retrieving %s: %s.", path, resources.getStatusLine());
+            }
+
+            try (InputStream in = resources.getResponseEntityContent();
+                    JsonParser parser = getObjectMapper().getFactory().createParser(in)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IndyClientException("Unexpected content of %s, object expected.", path);
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (ITEMS_FIELD.equals(field) && value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            reader.read(parser);
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IndyClientException("Error reading %s: %s", e, path, e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    private interface ItemReader {
+        void read(JsonParser parser) throws IOException;
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.jboss.pnc.cleaner.builds;
+
+import java.time.Duration;
+
+/**
+ * Store of shard leases coordinating cleaner replicas in the sharding mode. A replica cleans a shard of build groups
+ * only while it holds the lease of the shard, so every shard is cleaned by a single replica.
+ */
+public interface ShardLeaseStore {
+
+    /**
+     * Tries to acquire the lease of a shard. The lease is granted if the shard is not leased, the previous lease
+     * expired or it is already held by the same owner.
+     *
+     * @param shard the shard index
+     * @param owner identifier of the replica acquiring the lease
+     * @param leaseTime how long the lease is valid
+     * @return true if the lease was acquired, false if the shard is leased by another owner
+     * @throws CleanerException in case of an error when accessing the store
+     */
+    boolean tryAcquire(int shard, String owner, Duration leaseTime) throws CleanerException;
+
+    /**
+     * Releases the lease of a shard, so other replicas can acquire it. Nothing happens if the lease is held by another
+     * owner.
+     *
+     * @param shard the shard index
+     * @param owner identifier of the replica holding the lease
+     * @throws CleanerException in case of an error when accessing the store
+     */
+    void release(int shard, String owner) throws CleanerException;
+
+}
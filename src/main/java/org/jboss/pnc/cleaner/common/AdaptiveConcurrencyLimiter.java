@@ -0,0 +1,221 @@
+package org.jboss.pnc.cleaner.common;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Latency-aware limiter of concurrent calls to a remote service. The limit is adapted in the AIMD way: it is raised by
+ * one after every window of calls, which used the whole limit and kept the p99 latency close to the lowest p99 seen,
+ * and it is cut by a quarter when the p99 latency grows or a call fails because the service is overloaded. The lowest
+ * p99 slowly drifts up, so a permanent change of the service speed does not keep the limit down forever.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    /** Ratio applied to the limit when backing off. */
+    private static final double BACKOFF_RATIO = 0.75;
+
+    /** How much the window p99 latency can exceed the lowest p99 seen without being considered a slowdown. */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /** Latency differences below this are considered noise. */
+    private static final long LATENCY_SLACK = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /** Ratio the lowest p99 drifts up by after every window. */
+    private static final double BASELINE_DRIFT = 1.1;
+
+    /** Latency of a call, which is not sampled. */
+    private static final long NOT_SAMPLED = -1;
+
+    private final String name;
+
+    private final int maxLimit;
+
+    private final Predicate<Exception> overloadDetector;
+
+    private final long[] latencies;
+
+    private int sampleCount;
+
+    private int maxInFlight;
+
+    private int limit;
+
+    private int inFlight;
+
+    private long baselineP99;
+
+    /**
+     * @param name name of the limited service
+     * @param initialLimit the initial limit
+     * @param maxLimit the limit is never raised above this
+     * @param windowSize number of calls the latency is evaluated over
+     * @param overloadDetector says if a failed call means the service is overloaded
+     */
+    public AdaptiveConcurrencyLimiter(
+            String name,
+            int initialLimit,
+            int maxLimit,
+            int windowSize,
+            Predicate<Exception> overloadDetector) {
+        this.name = name;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(1, Math.min(initialLimit, maxLimit));
+        this.latencies = new long[windowSize];
+        this.overloadDetector = overloadDetector;
+    }
+
+    /**
+     * Remote call returning a value.
+     */
+    @FunctionalInterface
+    public interface RemoteCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /**
+     * Remote call without a return value.
+     */
+    @FunctionalInterface
+    public interface RemoteAction<E extends Exception> {
+        void run() throws E;
+    }
+
+    /**
+     * Makes the remote call once there is a free slot within the limit.
+     *
+     * @param remoteCall the remote call
+     * @return value returned by the call
+     * @throws E exception thrown by the call
+     */
+    public <T, E extends Exception> T call(RemoteCall<T, E> remoteCall) throws E {
+        acquire();
+        long start = System.nanoTime();
+        boolean overloaded = false;
+        try {
+            return remoteCall.call();
+        } catch (Exception e) {
+            overloaded = overloadDetector.test(e);
+            throw e;
+        } finally {
+            release(System.nanoTime() - start, overloaded);
+        }
+    }
+
+    /**
+     * Makes the remote call once there is a free slot within the limit.
+     *
+     * @param remoteAction the remote call
+     * @throws E exception thrown by the call
+     */
+    public <E extends Exception> void run(RemoteAction<E> remoteAction) throws E {
+        call(() -> {
+            remoteAction.run();
+            return null;
+        });
+    }
+
+    /**
+     * Makes a remote call listing a whole collection once there is a free slot within the limit. The duration of a
+     * listing depends on the size of the collection rather than on the health of the service, so its latency is not
+     * sampled. A failure because of overload still lowers the limit.
+     *
+     * @param remoteCall the remote call
+     * @return value returned by the call
+     * @throws E exception thrown by the call
+     */
+    public <T, E extends Exception> T callListing(RemoteCall<T, E> remoteCall) throws E {
+        acquire();
+        boolean overloaded = false;
+        try {
+            return remoteCall.call();
+        } catch (Exception e) {
+            overloaded = overloadDetector.test(e);
+            throw e;
+        } finally {
+            release(NOT_SAMPLED, overloaded);
+        }
+    }
+
+    /**
+     * Makes a remote call listing a whole collection once there is a free slot within the limit, see
+     * {@link #callListing(RemoteCall)}.
+     *
+     * @param remoteAction the remote call
+     * @throws E exception thrown by the call
+     */
+    public <E extends Exception> void runListing(RemoteAction<E> remoteAction) throws E {
+        callListing(() -> {
+            remoteAction.run();
+            return null;
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private synchronized void acquire() {
+        while (inFlight >= limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a call slot of " + name + ".", e);
+            }
+        }
+        inFlight++;
+        maxInFlight = Math.max(maxInFlight, inFlight);
+    }
+
+    private synchronized void release(long latency, boolean overloaded) {
+        inFlight--;
+        if (overloaded) {
+            backOff();
+        } else if (latency != NOT_SAMPLED) {
+            latencies[sampleCount++] = latency;
+            if (sampleCount == latencies.length) {
+                evaluateWindow();
+            }
+        }
+        notifyAll();
+    }
+
+    private void evaluateWindow() {
+        Arrays.sort(latencies);
+        long p99 = latencies[(int) Math.ceil(latencies.length * 0.99) - 1];
+        if (baselineP99 == 0 || p99 < baselineP99) {
+            baselineP99 = p99;
+        }
+
+        if (p99 <= baselineP99 * LATENCY_TOLERANCE || p99 - baselineP99 < LATENCY_SLACK) {
+            // raise the limit only if it was really reached, otherwise it is not known if the service can take more
+            if (maxInFlight >= limit && limit < maxLimit) {
+                limit++;
+            }
+            resetWindow();
+        } else {
+            backOff();
+        }
+        baselineP99 = (long) (baselineP99 * BASELINE_DRIFT);
+    }
+
+    private void backOff() {
+        limit = Math.max(1, (int) (limit * BACKOFF_RATIO));
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        sampleCount = 0;
+        maxInFlight = inFlight;
+    }
+
+}
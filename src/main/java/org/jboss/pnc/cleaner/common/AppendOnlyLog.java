@@ -0,0 +1,128 @@
+package org.jboss.pnc.cleaner.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only log of text records in a local file, one record per line. Every record is flushed as soon as it is
+ * appended, so the records survive a kill of the cleaner. A line left incomplete by a kill is ignored when the records
+ * are read. If writing fails, the log is closed and further records are dropped, so a broken disk does not stop the
+ * cleanup itself.
+ */
+public class AppendOnlyLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AppendOnlyLog.class);
+
+    private final Path file;
+
+    /** Description of the log used in the log messages. */
+    private final String description;
+
+    private BufferedWriter writer;
+
+    private AppendOnlyLog(Path file, String description) {
+        this.file = file;
+        this.description = description;
+    }
+
+    /**
+     * Opens the log for appending, the file is created if it does not exist.
+     *
+     * @param file the log file
+     * @param description description of the log used in the log messages
+     * @return the opened log
+     * @throws IOException in case of an error when opening the file
+     */
+    public static AppendOnlyLog open(Path file, String description) throws IOException {
+        AppendOnlyLog log = new AppendOnlyLog(file, description);
+        log.writer = Files
+                .newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return log;
+    }
+
+    /**
+     * Reads the records of the log. The last line is ignored if it is not terminated.
+     *
+     * @param file the log file
+     * @return the records in the order they were appended
+     * @throws IOException in case of an error when reading the file
+     */
+    public static List<String> readRecords(Path file) throws IOException {
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        List<String> lines = content.lines().collect(Collectors.toList());
+        if (!content.isEmpty() && !content.endsWith("\n")) {
+            // the previous run was killed while writing the last line, it is ignored as it might be incomplete
+            lines.remove(lines.size() - 1);
+        }
+        return lines;
+    }
+
+    /**
+     * @return true if records are appended, false if the log was closed or writing failed
+     */
+    public synchronized boolean isOpen() {
+        return writer != null;
+    }
+
+    public synchronized void append(String record) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(record);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            logger.error("Failed to write to " + description + " " + file + ". Recording is stopped.", e);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Atomically replaces the content of the log with the given records and continues appending after them, also if the
+     * log was closed before.
+     *
+     * @param records the new content of the log
+     */
+    public synchronized void rewrite(List<String> records) {
+        try {
+            close();
+            Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(rewritten, records, StandardCharsets.UTF_8);
+            Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.error("Failed to compact " + description + " " + file + ". Recording is stopped.", e);
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            BufferedWriter closed = writer;
+            writer = null;
+            closed.close();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            logger.warn("Failed to close " + description + " " + file + ".", ex);
+        }
+    }
+
+}
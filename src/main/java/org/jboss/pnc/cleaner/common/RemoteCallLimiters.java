@@ -0,0 +1,109 @@
+package org.jboss.pnc.cleaner.common;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.commonjava.indy.client.core.IndyClientException;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.pnc.client.RemoteResourceException;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+
+/**
+ * Adaptive concurrency limiters of the remote services used by the cleaner. All the calls to a service go through its
+ * limiter, so the number of parallel calls follows the health of the service. The current limits and the numbers of
+ * calls in flight are published as gauges.
+ */
+@ApplicationScoped
+public class RemoteCallLimiters {
+
+    private static final String className = RemoteCallLimiters.class.getName();
+
+    @ConfigProperty(name = "remotelimiter.window", defaultValue = "50")
+    int windowSize;
+
+    @ConfigProperty(name = "remotelimiter.indy.initial", defaultValue = "4")
+    int indyInitial;
+
+    @ConfigProperty(name = "remotelimiter.indy.max", defaultValue = "16")
+    int indyMax;
+
+    @ConfigProperty(name = "remotelimiter.orch.initial", defaultValue = "4")
+    int orchInitial;
+
+    @ConfigProperty(name = "remotelimiter.orch.max", defaultValue = "16")
+    int orchMax;
+
+    @ConfigProperty(name = "remotelimiter.bifrost.initial", defaultValue = "2")
+    int bifrostInitial;
+
+    @ConfigProperty(name = "remotelimiter.bifrost.max", defaultValue = "8")
+    int bifrostMax;
+
+    @Inject
+    MeterRegistry registry;
+
+    private AdaptiveConcurrencyLimiter indy;
+
+    private AdaptiveConcurrencyLimiter orch;
+
+    private AdaptiveConcurrencyLimiter bifrost;
+
+    @PostConstruct
+    void init() {
+        indy = register(new AdaptiveConcurrencyLimiter("indy", indyInitial, indyMax, windowSize, e -> {
+            if (e instanceof IndyClientException) {
+                IndyClientException ice = (IndyClientException) e;
+                // connection errors have no status, they carry the I/O exception as the cause
+                return ice.getStatusCode() >= 500 || ice.getCause() instanceof IOException;
+            }
+            return false;
+        }));
+        orch = register(new AdaptiveConcurrencyLimiter("orch", orchInitial, orchMax, windowSize, e -> {
+            if (e instanceof RemoteResourceException) {
+                return ((RemoteResourceException) e).getStatus() >= 500;
+            }
+            return e instanceof ProcessingException;
+        }));
+        bifrost = register(new AdaptiveConcurrencyLimiter("bifrost", bifrostInitial, bifrostMax, windowSize, e -> {
+            if (e instanceof WebApplicationException) {
+                return ((WebApplicationException) e).getResponse().getStatus() >= 500;
+            }
+            return e instanceof ProcessingException || e instanceof IOException;
+        }));
+    }
+
+    private AdaptiveConcurrencyLimiter register(AdaptiveConcurrencyLimiter limiter) {
+        registry.gauge(className + "." + limiter.getName() + ".limit", limiter, AdaptiveConcurrencyLimiter::getLimit);
+        registry.gauge(
+                className + "." + limiter.getName() + ".inflight",
+                limiter,
+                AdaptiveConcurrencyLimiter::getInFlight);
+        return limiter;
+    }
+
+    /**
+     * @return limiter of calls to Indy
+     */
+    public AdaptiveConcurrencyLimiter indy() {
+        return indy;
+    }
+
+    /**
+     * @return limiter of calls to Orchestrator, both builds and group builds
+     */
+    public AdaptiveConcurrencyLimiter orch() {
+        return orch;
+    }
+
+    /**
+     * @return limiter of calls to Bifrost
+     */
+    public AdaptiveConcurrencyLimiter bifrost() {
+        return bifrost;
+    }
+
+}
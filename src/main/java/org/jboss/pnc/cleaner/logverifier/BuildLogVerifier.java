@@ -5,10 +5,11 @@ import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.pnc.cleaner.common.RemoteCallLimiters;
+import org.jboss.pnc.cleaner.orchApi.KeysetPagedBuilds;
 import org.jboss.pnc.api.bifrost.dto.MetaData;
 import org.jboss.pnc.api.bifrost.enums.Direction;
 import org.jboss.pnc.client.BuildClient;
-import org.jboss.pnc.client.RemoteCollection;
 import org.jboss.pnc.client.RemoteResourceException;
 import org.jboss.pnc.dto.Build;
 import org.jboss.pnc.rest.api.parameters.BuildsFilterParameters;
@@ -19,12 +20,11 @@ import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -44,9 +44,15 @@ public class BuildLogVerifier {
     @Inject
     BuildClient buildClient;
 
+    @Inject
+    RemoteCallLimiters limiters;
+
     @ConfigProperty(name = "buildLogVerifierScheduler.maxRetries")
     private Integer maxRetries;
 
+    @ConfigProperty(name = "orch.pageSize", defaultValue = "50")
+    private Integer pageSize;
+
     private final Map<String, AtomicInteger> buildESLogErrorCounter = new HashMap<>();
 
     public static final String BUILD_OUTPUT_OK_KEY = "BUILD_OUTPUT_OK";
@@ -66,13 +72,42 @@ public class BuildLogVerifier {
     public BuildLogVerifier() {
     }
 
+    /**
+     * Verifies log checksums of builds, which were not verified yet. The builds are loaded page by page ordered by id.
+     * Every page is queried for the builds following the last build of the previous page instead of using an offset,
+     * because the flagged builds drop out of the query and would shift the following pages. Only a single page is held
+     * in memory. Builds, which cannot be verified, are skipped and verified by the next run.
+     *
+     * @return number of unverified builds found
+     */
     @Timed
     public int verifyUnflaggedBuilds() {
         logger.info("Verifying log checksums ...");
-        Collection<Build> unverifiedBuilds = getUnverifiedBuilds().getAll();
-        logger.info("Found {} unverified builds.", unverifiedBuilds.size());
-        unverifiedBuilds.forEach(build -> verify(build.getId(), build.getBuildOutputChecksum()));
-        return unverifiedBuilds.size();
+        int found = 0;
+        Iterator<Build> builds = getUnverifiedBuilds().iterator();
+        while (true) {
+            Build build;
+            try {
+                if (!builds.hasNext()) {
+                    break;
+                }
+                build = builds.next();
+            } catch (RuntimeException e) {
+                errCounter.increment();
+                logger.error("Cannot read remote builds. Found " + found + " builds before the failure.", e);
+                return found;
+            }
+            found++;
+            try {
+                verify(build.getId(), build.getBuildOutputChecksum());
+            } catch (RuntimeException e) {
+                // a remote call failed or the build has no checksum, the build is verified by the next run
+                errCounter.increment();
+                logger.error("Cannot verify checksum for buildId: " + build.getId() + ".", e);
+            }
+        }
+        logger.info("Found {} unverified builds.", found);
+        return found;
     }
 
     @Timed
@@ -130,31 +165,35 @@ public class BuildLogVerifier {
         String matchFilters = "mdc.processContext.keyword:build-" + buildId;
         String prefixFilters = "loggerName.keyword:org.jboss.pnc._userlog_.build-log";
 
-        MetaData metaData = bifrost.getMetaData(matchFilters, prefixFilters, null, Direction.ASC, null);
+        MetaData metaData = limiters.bifrost()
+                .call(() -> bifrost.getMetaData(matchFilters, prefixFilters, null, Direction.ASC, null));
         return metaData.getMd5Digest();
     }
 
     private void flagPncBuild(String buildId, boolean checksumMatch) {
         try {
-            buildClient.addAttribute(buildId, BUILD_OUTPUT_OK_KEY, Boolean.toString(checksumMatch));
+            limiters.orch()
+                    .run(() -> buildClient.addAttribute(buildId, BUILD_OUTPUT_OK_KEY, Boolean.toString(checksumMatch)));
         } catch (RemoteResourceException e) {
             errCounter.increment();
             logger.error("Cannot set {} attribute to build id: {}.", checksumMatch, buildId);
         }
     }
 
-    @Timed
-    private RemoteCollection<Build> getUnverifiedBuilds() {
+    /**
+     * Gets unverified builds ordered by id. The pages are loaded while iterated, every page within the Orchestrator
+     * limit.
+     *
+     * @return the unverified builds, the iteration throws a RuntimeException if a page cannot be loaded
+     */
+    private Iterable<Build> getUnverifiedBuilds() {
         BuildsFilterParameters buildsFilterParameters = new BuildsFilterParameters();
         buildsFilterParameters.setRunning(false);
         List<String> attributes = Collections.singletonList("!" + BUILD_OUTPUT_OK_KEY);
-        try {
-            String query = "buildOutputChecksum!=null";
-            return buildClient.getAll(buildsFilterParameters, attributes, Optional.empty(), Optional.of(query));
-        } catch (RemoteResourceException e) {
-            errCounter.increment();
-            logger.error("Cannot read remote builds.", e);
-            return RemoteCollection.empty();
-        }
+        return new KeysetPagedBuilds(
+                (sort, query) -> limiters.orch()
+                        .call(() -> buildClient.getAll(buildsFilterParameters, attributes, sort, query)),
+                "buildOutputChecksum!=null",
+                pageSize);
     }
 }
@@ -0,0 +1,114 @@
+package org.jboss.pnc.cleaner.orchApi;
+
+import org.jboss.pnc.client.RemoteCollection;
+import org.jboss.pnc.client.RemoteResourceException;
+import org.jboss.pnc.dto.Build;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+/**
+ * Builds loaded from Orchestrator page by page using a keyset cursor. Every page is a separate query for the builds
+ * following the last build of the previous page ordered by id instead of a page offset, so builds deleted or changed
+ * while iterated do not shift the following pages and no build is skipped. Only the first page of each query is read,
+ * so every page load is an explicit call, which can be limited and counted by the caller.
+ * <p>
+ * The iterator throws {@link PageLoadException} if a page cannot be loaded.
+ */
+public class KeysetPagedBuilds implements Iterable<Build> {
+
+    /** Order of the builds the cursor relies on. */
+    static final String SORT_BY_ID = "=asc=id";
+
+    /**
+     * Loads a page of builds from Orchestrator.
+     */
+    @FunctionalInterface
+    public interface PageQuery {
+
+        /**
+         * @param sort the sort parameter of the query
+         * @param query the RSQL query
+         * @return the builds matching the query, only the first page is read
+         * @throws RemoteResourceException in case of an error when loading the page
+         */
+        RemoteCollection<Build> load(Optional<String> sort, Optional<String> query) throws RemoteResourceException;
+    }
+
+    private final PageQuery pageQuery;
+
+    private final String query;
+
+    private final int pageSize;
+
+    /**
+     * @param pageQuery loads a page of builds
+     * @param query RSQL query selecting the builds, null for all of them
+     * @param pageSize size of the pages returned by Orchestrator
+     */
+    public KeysetPagedBuilds(PageQuery pageQuery, String query, int pageSize) {
+        this.pageQuery = pageQuery;
+        this.query = query;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public Iterator<Build> iterator() {
+        return new Iterator<Build>() {
+
+            private Iterator<Build> page;
+
+            private int pageCount;
+
+            private String lastId;
+
+            @Override
+            public boolean hasNext() {
+                if (page == null || pageCount == pageSize) {
+                    // the collection would load the next page by an offset, so it is queried by the cursor instead
+                    page = loadPage(lastId);
+                    pageCount = 0;
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public Build next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Build build = page.next();
+                pageCount++;
+                lastId = build.getId();
+                return build;
+            }
+        };
+    }
+
+    private Iterator<Build> loadPage(String afterId) {
+        String cursor = afterId == null ? null : "id=gt=" + afterId;
+        String pageQueryString = query == null ? cursor : cursor == null ? query : query + ";" + cursor;
+        try {
+            return pageQuery.load(Optional.of(SORT_BY_ID), Optional.ofNullable(pageQueryString)).iterator();
+        } catch (RemoteResourceException e) {
+            throw new PageLoadException(
+                    String.format(
+                            "Loading of builds after id %s failed with [status: %d, errorResponse: %s]",
+                            afterId,
+                            e.getStatus(),
+                            e.getResponse().orElse(null)),
+                    e);
+        }
+    }
+
+    /**
+     * Thrown when a page of builds cannot be loaded.
+     */
+    public static class PageLoadException extends RuntimeException {
+
+        public PageLoadException(String message, RemoteResourceException cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -20,6 +20,7 @@ package org.jboss.pnc.cleaner.rest;
 import io.micrometer.core.annotation.Timed;
 import org.jboss.pnc.cleaner.temporaryBuilds.BuildDeleteCallbackManager;
 import org.jboss.pnc.cleaner.temporaryBuilds.BuildGroupDeleteCallbackManager;
+import org.jboss.pnc.cleaner.temporaryBuilds.DeleteCallbackManager;
 import org.jboss.pnc.dto.response.DeleteOperationResult;
 
 import javax.inject.Inject;
@@ -29,6 +30,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.List;
 
 /**
  * @author Jakub Bartecek
@@ -63,4 +65,40 @@ public class Callbacks {
         buildGroupDeleteCallbackManager.callback(buildId, deleteOperation);
         return Response.ok().build();
     }
+
+    /**
+     * Receives results of several build deletions at once.
+     *
+     * @param deleteOperations results of the deletions, each one identified by its ID
+     * @return 202 if the results were accepted to be processed, 400 if any of them has no ID
+     */
+    @Path("/delete/builds")
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Timed
+    public Response buildRecordsDeleteCallback(List<DeleteOperationResult> deleteOperations) {
+        return acceptBulk(buildDeleteCallbackManager, deleteOperations);
+    }
+
+    /**
+     * Receives results of several group build deletions at once.
+     *
+     * @param deleteOperations results of the deletions, each one identified by its ID
+     * @return 202 if the results were accepted to be processed, 400 if any of them has no ID
+     */
+    @Path("/delete/group-builds")
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Timed
+    public Response buildGroupRecordsDeleteCallback(List<DeleteOperationResult> deleteOperations) {
+        return acceptBulk(buildGroupDeleteCallbackManager, deleteOperations);
+    }
+
+    private Response acceptBulk(DeleteCallbackManager manager, List<DeleteOperationResult> deleteOperations) {
+        if (deleteOperations == null || deleteOperations.stream().anyMatch(o -> o == null || o.getId() == null)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        manager.callbacks(deleteOperations);
+        return Response.accepted().build();
+    }
 }
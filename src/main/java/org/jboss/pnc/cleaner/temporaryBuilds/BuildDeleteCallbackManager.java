@@ -20,12 +20,18 @@ package org.jboss.pnc.cleaner.temporaryBuilds;
 import javax.enterprise.context.ApplicationScoped;
 
 /**
- * CDI bean, which manages delete operation callbacks for BUILDS and provides a blocking was of waiting fot the
- * operation completion. First the wait operation must be initiated using a method #initializeHandler and then at any
- * time a blocking method #await can be called.
+ * CDI bean, which manages delete operation callbacks for BUILDS and provides a non-blocking way of waiting for the
+ * operation completion. The wait operation is initiated using a method #initializeHandler or #registerHandler, which
+ * returns a CompletionStage completed with the result reported by the callback or with null if the callback does not
+ * arrive in time.
  *
  * @author Jakub Bartecek
  */
 @ApplicationScoped
 public class BuildDeleteCallbackManager extends DeleteCallbackManager {
+
+    @Override
+    protected String getKind() {
+        return "build";
+    }
 }
@@ -17,25 +17,38 @@
  */
 package org.jboss.pnc.cleaner.temporaryBuilds;
 
-import io.micrometer.core.annotation.Timed;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.pnc.dto.response.DeleteOperationResult;
+import org.jboss.pnc.enums.ResultStatus;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Manages delete operation callbacks and provides a blocking was of waiting fot the operation completion. First the
- * wait operation must be initiated using a method #initializeHandler and then at any time a blocking method #await can
- * be called.
+ * Manages delete operation callbacks and provides a non-blocking way of waiting for the operation completion. The wait
+ * operation is initiated using a method #initializeHandler, which returns a stage completed by the callback. A single
+ * timer thread completes the stages of operations, which did not get their callback in time, so any number of pending
+ * deletions does not need any waiting threads. Results of callbacks arriving after the timeout are kept for a grace
+ * period in a bounded registry, so a retry of the deletion can use them instead of deleting the build again. In case
+ * the callbacks get lost, the deletion can be also resolved by polling the state of the build with a backoff.
  *
  * @author Jakub Bartecek
  */
@@ -44,37 +57,158 @@ public class DeleteCallbackManager {
 
     private static final String className = DeleteCallbackManager.class.getName();
 
-    private Map<String, CallbackData> buildsMap = new ConcurrentHashMap<>();
+    private Map<String, PendingDeletion> buildsMap = new ConcurrentHashMap<>();
+
+    /** Timed out operations waiting for a late callback, indexed by build ID. */
+    private Map<String, LateCallback> lateCallbacks = new ConcurrentHashMap<>();
 
     @ConfigProperty(name = "simpleCallbackHandler.max-delete-wait-time", defaultValue = "600")
     long MAX_WAIT_TIME;
 
+    /** Time in seconds a timed out operation waits for a late callback and its result is kept. */
+    @ConfigProperty(name = "simpleCallbackHandler.late-callback-ttl", defaultValue = "3600")
+    long LATE_CALLBACK_TTL;
+
+    /** Maximum number of timed out operations waiting for a late callback. */
+    @ConfigProperty(name = "simpleCallbackHandler.late-callback-max-size", defaultValue = "10000")
+    int LATE_CALLBACK_MAX_SIZE;
+
+    /** Delay in seconds before the first poll of a pending deletion, it doubles after each poll. 0 disables polling. */
+    @ConfigProperty(name = "simpleCallbackHandler.poll-initial-delay", defaultValue = "15")
+    long POLL_INITIAL_DELAY;
+
+    /** Maximum delay in seconds between polls of a pending deletion. */
+    @ConfigProperty(name = "simpleCallbackHandler.poll-max-delay", defaultValue = "120")
+    long POLL_MAX_DELAY;
+
+    /** Number of threads polling the state of pending deletions. */
+    @ConfigProperty(name = "simpleCallbackHandler.poll-threads", defaultValue = "2")
+    int POLL_THREADS;
+
     @Inject
     MeterRegistry registry;
 
-    private Counter errCounter;
     private Counter warnCounter;
 
+    private Counter timeoutCounter;
+
+    private Counter lateCounter;
+
+    private Timer callbackTimer;
+
+    /** Runs the timeouts, the purge of late callbacks and schedules the polls, it must never block. */
+    private ScheduledThreadPoolExecutor timer;
+
+    /** Runs the polls, which block on the calls to Orchestrator. */
+    private ExecutorService pollExecutor;
+
+    /** Processes the bulk callbacks, so the callback requests are answered without waiting for the completions. */
+    private ExecutorService bulkCallbackExecutor;
+
     @PostConstruct
-    void initMetrics() {
-        errCounter = registry.counter(className + ".error.count");
+    void init() {
         warnCounter = registry.counter(className + ".warning.count");
+
+        Tags tags = Tags.of("kind", getKind());
+        timeoutCounter = registry.counter(className + ".timeout.count", tags);
+        lateCounter = registry.counter(className + ".late.count", tags);
+        callbackTimer = Timer.builder(className + ".callback")
+                .tags(tags)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(registry);
+        registry.gauge(className + ".pending", tags, buildsMap, Map::size);
+
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "delete-callback-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pollExecutor = Executors.newFixedThreadPool(Math.max(1, POLL_THREADS), r -> {
+            Thread thread = new Thread(r, "delete-callback-poll");
+            thread.setDaemon(true);
+            return thread;
+        });
+        bulkCallbackExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "delete-callback-bulk");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // timeouts of the completed operations are cancelled, they should not stay queued for the whole wait time
+        timer.setRemoveOnCancelPolicy(true);
+        timer.scheduleWithFixedDelay(this::expireLateCallbacks, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return kind of the deleted builds used to tag the metrics
+     */
+    protected String getKind() {
+        return "build";
+    }
+
+    @PreDestroy
+    void shutdownTimer() {
+        timer.shutdownNow();
+        pollExecutor.shutdownNow();
+        bulkCallbackExecutor.shutdownNow();
+    }
+
+    /**
+     * Initialize data to wait for a completion of a deletion of a specific build. The returned stage is completed with
+     * the result of the operation when the callback arrives or with null if it does not arrive within the configured
+     * maximum time. If the build is already registered, the stage of the pending deletion is returned.
+     *
+     * @param buildId ID of a build to wait for
+     * @return stage completed with the result of the operation or null if the callback was not triggered
+     */
+    public CompletionStage<DeleteOperationResult> initializeHandler(String buildId) {
+        while (true) {
+            CompletionStage<DeleteOperationResult> registered = registerHandler(buildId);
+            if (registered != null) {
+                return registered;
+            }
+            CompletionStage<DeleteOperationResult> pending = getPending(buildId);
+            if (pending != null) {
+                // Delete operation is already in progress and waiting for that build deletion
+                return pending;
+            }
+        }
     }
 
     /**
-     * Initialize data to wait for a completion of a deletion of a specific build
+     * Initialize data to wait for a completion of a deletion of a specific build only if no deletion of the build is
+     * pending, so the caller knows whether it owns the deletion and should request it. The returned stage is completed
+     * the same way as the one returned by #initializeHandler.
      *
      * @param buildId ID of a build to wait for
-     * @return True if succeeds. False if this build is already registered.
+     * @return stage completed with the result of the operation or null if the deletion of the build is already pending
      */
-    public boolean initializeHandler(String buildId) {
-        if (buildsMap.containsKey(buildId)) {
-            // Delete operation is already in progress and waiting for that build deletion
-            return false;
+    public CompletionStage<DeleteOperationResult> registerHandler(String buildId) {
+        PendingDeletion result = new PendingDeletion();
+        if (buildsMap.putIfAbsent(buildId, result) != null) {
+            return null;
         }
 
-        buildsMap.put(buildId, new CallbackData());
-        return true;
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (buildsMap.remove(buildId, result)) {
+                // the late callback is expected before the waiting party learns about the timeout and retries
+                expectLateCallback(buildId);
+                timeoutCounter.increment();
+                warnCounter.increment();
+                log.warn("Delete operation callback did not arrive in {} seconds. BuildId: {}", MAX_WAIT_TIME, buildId);
+                result.complete(null);
+            }
+        }, MAX_WAIT_TIME, TimeUnit.SECONDS);
+        result.whenComplete((r, e) -> timeout.cancel(false));
+        return result;
+    }
+
+    /**
+     * @param buildId Build ID
+     * @return stage of the pending deletion of the build or null if no deletion of the build is pending
+     */
+    public CompletionStage<DeleteOperationResult> getPending(String buildId) {
+        return buildsMap.get(buildId);
     }
 
     /**
@@ -84,10 +218,15 @@ public class DeleteCallbackManager {
      * @param result Result of the operation
      */
     public void callback(String buildId, DeleteOperationResult result) {
-        CallbackData callbackData = buildsMap.get(buildId);
-        if (callbackData != null) {
-            callbackData.setCallbackResponse(result);
-            callbackData.getCountDownLatch().countDown();
+        PendingDeletion pending = buildsMap.remove(buildId);
+        LateCallback late;
+        if (pending != null) {
+            callbackTimer.record(System.nanoTime() - pending.startTime, TimeUnit.NANOSECONDS);
+            pending.complete(result);
+        } else if ((late = lateCallbacks.get(buildId)) != null) {
+            lateCounter.increment();
+            log.info("Late delete operation callback arrived. BuildId: {}, result: {}", buildId, result);
+            late.setResult(result);
         } else {
             warnCounter.increment();
             log.warn(
@@ -98,36 +237,169 @@ public class DeleteCallbackManager {
     }
 
     /**
-     * Blocking wait operation for completion of delete operation. It waits for a configurable maximum time.
+     * Registers responses to several delete operation completions reported at once. The results are handed over to a
+     * dedicated background thread and processed as a single batch, so the caller does not wait for the completions and
+     * the timer thread stays free for the timeouts and polls. A failure of one result does not stop the others.
+     *
+     * @param results results of the operations, each one carries the ID of the build
+     */
+    public void callbacks(Collection<DeleteOperationResult> results) {
+        bulkCallbackExecutor.execute(() -> {
+            for (DeleteOperationResult result : results) {
+                try {
+                    callback(result.getId(), result);
+                } catch (RuntimeException e) {
+                    warnCounter.increment();
+                    log.warn("Processing of delete operation callback failed. BuildId: " + result.getId(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops waiting for the deletion of the build. The stage returned by #initializeHandler is completed with null.
      *
      * @param buildId Build ID
-     * @return Result of the operation or null if the callback was not triggered
-     * @throws InterruptedException Thrown if an error occurs while waiting for callback
      */
-    @Timed
-    public DeleteOperationResult await(String buildId) throws InterruptedException {
-        CallbackData callbackData = buildsMap.get(buildId);
-        if (callbackData == null) {
-            errCounter.increment();
-            throw new IllegalArgumentException(
-                    "Await operation triggered for a build, which was not initiated using "
-                            + "method initializeHandler. This method must be called first!");
+    public void cancel(String buildId) {
+        CompletableFuture<DeleteOperationResult> pending = buildsMap.remove(buildId);
+        if (pending != null) {
+            pending.complete(null);
         }
+    }
 
-        callbackData.getCountDownLatch().await(MAX_WAIT_TIME, TimeUnit.SECONDS);
-        buildsMap.remove(buildId);
-        return callbackData.getCallbackResponse();
+    /**
+     * Stops waiting for the deletion of the build only if the given stage is the pending one, so a caller cannot cancel
+     * a deletion registered by someone else. The stage is completed with null.
+     *
+     * @param buildId Build ID
+     * @param stage stage returned by #registerHandler
+     */
+    public void cancel(String buildId, CompletionStage<DeleteOperationResult> stage) {
+        if (buildsMap.remove(buildId, stage)) {
+            stage.toCompletableFuture().complete(null);
+        }
     }
 
-    public void cancel(String buildId) {
-        buildsMap.remove(buildId);
+    /**
+     * Starts polling of the state of a pending deletion of the build in case its callback gets lost. The polls are done
+     * with an exponential backoff until the deletion is resolved. Once the check says the build is deleted, the
+     * deletion is resolved with a successful result as if the callback arrived.
+     *
+     * @param buildId ID of a build, which deletion is pending
+     * @param check check of the build state
+     */
+    public void pollUntilDeleted(String buildId, DeletionCheck check) {
+        CompletableFuture<DeleteOperationResult> pending = buildsMap.get(buildId);
+        if (pending != null && POLL_INITIAL_DELAY > 0) {
+            schedulePoll(buildId, pending, check, POLL_INITIAL_DELAY);
+        }
+    }
+
+    private void schedulePoll(
+            String buildId,
+            CompletableFuture<DeleteOperationResult> pending,
+            DeletionCheck check,
+            long delay) {
+        // the timer only hands the poll over, so a slow check does not delay the timeouts
+        ScheduledFuture<?> poll = timer.schedule(
+                () -> pollExecutor.execute(() -> poll(buildId, pending, check, delay)),
+                delay,
+                TimeUnit.SECONDS);
+        pending.whenComplete((r, e) -> poll.cancel(false));
+    }
+
+    private void poll(
+            String buildId,
+            CompletableFuture<DeleteOperationResult> pending,
+            DeletionCheck check,
+            long delay) {
+        if (pending.isDone()) {
+            return;
+        }
+        try {
+            if (check.isDeleted()) {
+                if (buildsMap.remove(buildId, pending)) {
+                    log.info("Build {} is gone, resolving its deletion without a callback.", buildId);
+                    pending.complete(deletedResult(buildId));
+                }
+                return;
+            }
+        } catch (Exception e) {
+            log.debug("Polling of a pending deletion of build {} failed.", buildId, e);
+        }
+        schedulePoll(buildId, pending, check, Math.min(delay * 2, Math.max(POLL_MAX_DELAY, 1)));
+    }
+
+    private static DeleteOperationResult deletedResult(String buildId) {
+        DeleteOperationResult result = new DeleteOperationResult();
+        result.setId(buildId);
+        result.setStatus(ResultStatus.SUCCESS);
+        result.setMessage("Deletion detected by polling, the callback did not arrive.");
+        return result;
+    }
+
+    /**
+     * Takes the result of a late callback of a timed out deletion of the build. The result is removed from the
+     * registry.
+     *
+     * @param buildId Build ID
+     * @return Result of the operation or null if no late callback arrived within the grace period
+     */
+    public DeleteOperationResult takeLateResult(String buildId) {
+        LateCallback late = lateCallbacks.get(buildId);
+        if (late == null || late.getResult() == null || !lateCallbacks.remove(buildId, late)) {
+            return null;
+        }
+        return late.isExpired() ? null : late.getResult();
+    }
+
+    private void expectLateCallback(String buildId) {
+        if (lateCallbacks.size() >= LATE_CALLBACK_MAX_SIZE) {
+            expireLateCallbacks();
+        }
+        if (lateCallbacks.size() >= LATE_CALLBACK_MAX_SIZE) {
+            warnCounter.increment();
+            log.warn("Too many timed out delete operations, late callback will not be kept. BuildId: {}", buildId);
+            return;
+        }
+        lateCallbacks.put(buildId, new LateCallback(Instant.now().plusSeconds(LATE_CALLBACK_TTL)));
+    }
+
+    private void expireLateCallbacks() {
+        lateCallbacks.values().removeIf(LateCallback::isExpired);
+    }
+
+    /**
+     * Check of the state of a build, which deletion is pending.
+     */
+    @FunctionalInterface
+    public interface DeletionCheck {
+
+        /**
+         * @return true if the build does not exist anymore
+         * @throws Exception in case the state could not be checked
+         */
+        boolean isDeleted() throws Exception;
+    }
+
+    /**
+     * Stage of a pending deletion, which knows when the deletion was requested.
+     */
+    private static class PendingDeletion extends CompletableFuture<DeleteOperationResult> {
+
+        private final long startTime = System.nanoTime();
     }
 
     @Data
-    public class CallbackData {
+    private static class LateCallback {
 
-        private DeleteOperationResult callbackResponse = null;
+        private final Instant expiration;
 
-        private final CountDownLatch countDownLatch = new CountDownLatch(1);
+        private volatile DeleteOperationResult result;
+
+        boolean isExpired() {
+            return Instant.now().isAfter(expiration);
+        }
     }
 }
@@ -28,4 +28,9 @@ public interface TemporaryBuildsCleaner {
      * Cleanup old temporary builds
      */
     void cleanupExpiredTemporaryBuilds();
+
+    /**
+     * Resume deletions left unfinished by a previous run, without looking for expired temporary builds
+     */
+    void resumeUnfinishedDeletions();
 }
@@ -22,6 +22,7 @@ import org.jboss.pnc.dto.GroupBuild;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Adapter, which provides high level operations on Orchestrator REST API
@@ -31,12 +32,14 @@ import java.util.Date;
 public interface TemporaryBuildsCleanerAdapter {
 
     /**
-     * Finds all temporary builds, which are older than a timestamp set by the expirationDate parameter
+     * Finds all temporary builds, which are older than a timestamp set by the expirationDate parameter. The builds are
+     * loaded lazily page by page ordered by ID while iterated, each page following the last build of the previous one,
+     * so deleting the iterated builds does not make the iteration skip any build.
      *
      * @param expirationDate Timestamp defining expiration date of temporary builds
-     * @return List of expired builds
+     * @return Expired builds, the iteration throws a RuntimeException if a page cannot be loaded
      */
-    Collection<Build> findTemporaryBuildsOlderThan(Date expirationDate);
+    Iterable<Build> iterateTemporaryBuildsOlderThan(Date expirationDate);
 
     /**
      * Deletes a temporary build and waits for the operation completion. The method is blocking.
@@ -46,6 +49,16 @@ public interface TemporaryBuildsCleanerAdapter {
      */
     void deleteTemporaryBuild(String id) throws OrchInteractionException;
 
+    /**
+     * Deletes a temporary build without waiting for the operation completion. The method blocks only for the delete
+     * request, the returned stage is completed when Orchestrator reports the result.
+     *
+     * @param id ID of a temporary build, which is meant to be deleted
+     * @return stage completed when the build is deleted or completed exceptionally with
+     *         {@link OrchInteractionException} if deletion fails with an error
+     */
+    CompletionStage<Void> deleteTemporaryBuildAsync(String id);
+
     /**
      * Finds all temporary BuildConfigSetRecords, which are older than a timestamp set by the expirationDate parameter
      *
@@ -61,4 +74,14 @@ public interface TemporaryBuildsCleanerAdapter {
      * @throws OrchInteractionException Thrown if deletion fails with an error
      */
     void deleteTemporaryGroupBuild(String id) throws OrchInteractionException;
+
+    /**
+     * Deletes a temporary BuildConfigSetRecord without waiting for the operation completion. The method blocks only for
+     * the delete request, the returned stage is completed when Orchestrator reports the result.
+     *
+     * @param id ID of a temporary BuildConfigSetRecord, which is meant to be deleted
+     * @return stage completed when the BuildConfigSetRecord is deleted or completed exceptionally with
+     *         {@link OrchInteractionException} if deletion fails with an error
+     */
+    CompletionStage<Void> deleteTemporaryGroupBuildAsync(String id);
 }
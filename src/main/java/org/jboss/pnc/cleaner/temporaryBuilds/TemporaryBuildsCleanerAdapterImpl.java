@@ -22,10 +22,16 @@ import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.pnc.cleaner.common.AdaptiveConcurrencyLimiter.RemoteAction;
+import org.jboss.pnc.cleaner.common.AdaptiveConcurrencyLimiter.RemoteCall;
+import org.jboss.pnc.cleaner.common.RemoteCallLimiters;
+import org.jboss.pnc.cleaner.orchApi.KeysetPagedBuilds;
 import org.jboss.pnc.client.BuildClient;
 import org.jboss.pnc.client.GroupBuildClient;
 import org.jboss.pnc.client.RemoteCollection;
 import org.jboss.pnc.client.RemoteResourceException;
+import org.jboss.pnc.client.RemoteResourceNotFoundException;
 import org.jboss.pnc.dto.Build;
 import org.jboss.pnc.dto.response.DeleteOperationResult;
 import org.jboss.pnc.dto.GroupBuild;
@@ -41,6 +47,9 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Implementation of an adapter providing high-level operations on Orchestrator REST API
@@ -60,12 +69,18 @@ public class TemporaryBuildsCleanerAdapterImpl implements TemporaryBuildsCleaner
     @Inject
     Config config;
 
+    @ConfigProperty(name = "orch.pageSize", defaultValue = "50")
+    int pageSize;
+
     @Inject
     BuildClient buildClient;
 
     @Inject
     GroupBuildClient groupBuildClient;
 
+    @Inject
+    RemoteCallLimiters limiters;
+
     @Inject
     BuildDeleteCallbackManager buildDeleteCallbackManager;
 
@@ -92,64 +107,30 @@ public class TemporaryBuildsCleanerAdapterImpl implements TemporaryBuildsCleaner
         BASE_DELETE_BUILD_GROUP_CALLBACK_URL = host + "/callbacks/delete/group-builds/";
     }
 
-    @Timed
     @Override
-    public Collection<Build> findTemporaryBuildsOlderThan(Date expirationDate) {
-        Collection<Build> buildsRest = new HashSet<>();
-
-        try {
-            RemoteCollection<Build> remoteCollection = buildClient
-                    .getAllIndependentTempBuildsOlderThanTimestamp(expirationDate.getTime());
-            remoteCollection.forEach(buildsRest::add);
-        } catch (RemoteResourceException e) {
-            warnCounter.increment();
-            log.warn(
-                    "Querying of temporary builds from Orchestrator failed with [status: {}, errorResponse: {}]",
-                    e.getStatus(),
-                    e.getResponse().orElse(null));
-            return buildsRest;
-        }
-
-        return buildsRest;
+    public Iterable<Build> iterateTemporaryBuildsOlderThan(Date expirationDate) {
+        long timestamp = expirationDate.getTime();
+        return new KeysetPagedBuilds(
+                (sort, query) -> limiters.orch()
+                        .call(() -> buildClient.getAllIndependentTempBuildsOlderThanTimestamp(timestamp, sort, query)),
+                null,
+                pageSize);
     }
 
     @Timed
     @Override
     public void deleteTemporaryBuild(String id) throws OrchInteractionException {
-        buildDeleteCallbackManager.initializeHandler(id);
-        try {
-            buildClient.delete(id, BASE_DELETE_BUILD_CALLBACK_URL + id);
-            DeleteOperationResult result = buildDeleteCallbackManager.await(id);
-
-            if (result != null && result.getStatus() != null && result.getStatus().isSuccess()) {
-                return;
-            } else {
-                errCounter.increment();
-                throw new OrchInteractionException(
-                        String.format(
-                                "Deletion of a build %s failed! " + "Orchestrator"
-                                        + " reported a failure: [status={}, message={}].",
-                                result == null ? null : result.getStatus(),
-                                result == null ? null : result.getMessage()));
-            }
-
-        } catch (RemoteResourceException e) {
-            errCounter.increment();
-            buildDeleteCallbackManager.cancel(id);
-            throw new OrchInteractionException(
-                    String.format(
-                            "Deletion of a build %s failed! The operation " + "failed with errorStatus=%s.",
-                            id,
-                            e.getStatus()),
-                    e);
-        } catch (InterruptedException e) {
-            errCounter.increment();
-            buildDeleteCallbackManager.cancel(id);
-            throw new OrchInteractionException(
-                    String.format("Deletion of a build %s failed! Wait operation " + "failed with an exception.", id),
-                    e);
-        }
+        join(deleteTemporaryBuildAsync(id));
+    }
 
+    @Override
+    public CompletionStage<Void> deleteTemporaryBuildAsync(String id) {
+        return deleteAsync(
+                "build",
+                buildDeleteCallbackManager,
+                id,
+                () -> buildClient.delete(id, BASE_DELETE_BUILD_CALLBACK_URL + id),
+                () -> buildClient.getSpecific(id));
     }
 
     @Timed
@@ -157,10 +138,14 @@ public class TemporaryBuildsCleanerAdapterImpl implements TemporaryBuildsCleaner
     public Collection<GroupBuild> findTemporaryGroupBuildsOlderThan(Date expirationDate) {
         Collection<GroupBuild> groupBuilds = new HashSet<>();
         try {
-            RemoteCollection<GroupBuild> remoteCollection = groupBuildClient.getAll(
-                    Optional.empty(),
-                    Optional.of("temporaryBuild==TRUE;endTime<" + formatTimestampForRsql(expirationDate)));
-            remoteCollection.forEach(build -> groupBuilds.add(build));
+            // all the pages are loaded within a single slot of the limit
+            limiters.orch().callListing(() -> {
+                RemoteCollection<GroupBuild> remoteCollection = groupBuildClient.getAll(
+                        Optional.empty(),
+                        Optional.of("temporaryBuild==TRUE;endTime<" + formatTimestampForRsql(expirationDate)));
+                remoteCollection.forEach(build -> groupBuilds.add(build));
+                return null;
+            });
 
         } catch (RemoteResourceException e) {
             warnCounter.increment();
@@ -177,41 +162,150 @@ public class TemporaryBuildsCleanerAdapterImpl implements TemporaryBuildsCleaner
     @Timed
     @Override
     public void deleteTemporaryGroupBuild(String id) throws OrchInteractionException {
-        buildGroupDeleteCallbackManager.initializeHandler(id);
+        join(deleteTemporaryGroupBuildAsync(id));
+    }
 
-        try {
-            groupBuildClient.delete(id, BASE_DELETE_BUILD_GROUP_CALLBACK_URL + id);
-            DeleteOperationResult result = buildGroupDeleteCallbackManager.await(id);
-
-            if (result != null && result.getStatus() != null && result.getStatus().isSuccess()) {
-                return;
-            } else {
-                errCounter.increment();
-                throw new OrchInteractionException(
-                        String.format(
-                                "Deletion of a group build %s failed! " + "Orchestrator"
-                                        + " reported a failure: [status={}, message={}].",
-                                result == null ? null : result.getStatus(),
-                                result == null ? null : result.getMessage()));
-            }
+    @Override
+    public CompletionStage<Void> deleteTemporaryGroupBuildAsync(String id) {
+        return deleteAsync(
+                "group build",
+                buildGroupDeleteCallbackManager,
+                id,
+                () -> groupBuildClient.delete(id, BASE_DELETE_BUILD_GROUP_CALLBACK_URL + id),
+                () -> groupBuildClient.getSpecific(id));
+    }
 
+    /**
+     * Requests the deletion of the entity and returns a stage completed by its callback. If a deletion of the entity is
+     * already pending, the stage of that deletion is returned and the deletion is not requested again.
+     *
+     * @param kind kind of the deleted entity used in the error messages
+     * @param callbackManager manager of the callbacks of the deletion
+     * @param id ID of the deleted entity
+     * @param delete requests the deletion from Orchestrator
+     * @param getter loads the entity to check if it was deleted
+     * @return stage completed when the entity is deleted
+     */
+    private CompletionStage<Void> deleteAsync(
+            String kind,
+            DeleteCallbackManager callbackManager,
+            String id,
+            RemoteAction<RemoteResourceException> delete,
+            RemoteCall<?, RemoteResourceException> getter) {
+        if (isDeletedLate(callbackManager, id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletionStage<DeleteOperationResult> callback;
+        while ((callback = callbackManager.registerHandler(id)) == null) {
+            CompletionStage<DeleteOperationResult> pending = callbackManager.getPending(id);
+            if (pending != null) {
+                log.info("Deletion of a {} {} is already in progress, waiting for its result.", kind, id);
+                return pending.thenApply(result -> checkResult(kind, id, result));
+            }
+        }
+        try {
+            limiters.orch().run(delete);
         } catch (RemoteResourceException e) {
             errCounter.increment();
-            buildDeleteCallbackManager.cancel(id);
-            throw new OrchInteractionException(
-                    String.format(
-                            "Deletion of a group build %s failed! The operation " + "failed with errorMessage=%s.",
-                            id,
-                            e.getStatus()),
-                    e);
-        } catch (InterruptedException e) {
+            callbackManager.cancel(id, callback);
+            return CompletableFuture.failedFuture(
+                    new OrchInteractionException(
+                            String.format(
+                                    "Deletion of a %s %s failed! The operation failed with errorStatus=%s.",
+                                    kind,
+                                    id,
+                                    e.getStatus()),
+                            e));
+        } catch (RuntimeException e) {
             errCounter.increment();
-            buildDeleteCallbackManager.cancel(id);
-            throw new OrchInteractionException(
-                    String.format(
-                            "Deletion of a group build %s failed! Wait operation " + "failed with an exception.",
-                            id),
-                    e);
+            callbackManager.cancel(id, callback);
+            return CompletableFuture.failedFuture(
+                    new OrchInteractionException(String.format("Deletion of a %s %s failed! %s", kind, id, e), e));
+        }
+        callbackManager.pollUntilDeleted(id, () -> isGone(getter));
+        return callback.thenApply(result -> checkResult(kind, id, result));
+    }
+
+    /**
+     * Checks if the entity does not exist anymore in Orchestrator.
+     *
+     * @param getter loads the entity
+     * @return true if the entity was not found
+     * @throws RemoteResourceException in case of an error when loading the entity
+     */
+    private boolean isGone(RemoteCall<?, RemoteResourceException> getter) throws RemoteResourceException {
+        try {
+            limiters.orch().call(getter);
+            return false;
+        } catch (RemoteResourceNotFoundException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Checks if a previous deletion, which timed out, got a successful callback later, so the entity does not need to
+     * be deleted again.
+     *
+     * @param callbackManager manager of the callbacks of the deletion
+     * @param id ID of the deleted entity
+     * @return true if the entity was already deleted
+     */
+    private boolean isDeletedLate(DeleteCallbackManager callbackManager, String id) {
+        DeleteOperationResult late = callbackManager.takeLateResult(id);
+        if (late != null && late.getStatus() != null && late.getStatus().isSuccess()) {
+            log.info("Deletion of {} already succeeded according to a late callback, not deleting it again.", id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks the result of a delete operation reported by the callback.
+     *
+     * @param kind kind of the deleted entity used in the error message
+     * @param id ID of the deleted entity
+     * @param result the reported result, null if the callback did not arrive
+     * @return nothing
+     * @throws CompletionException wrapping an {@link OrchInteractionException} if the deletion failed or a
+     *         {@link DeleteTimeoutException} if the result was not reported in time
+     */
+    private Void checkResult(String kind, String id, DeleteOperationResult result) {
+        if (result != null && result.getStatus() != null && result.getStatus().isSuccess()) {
+            return null;
+        }
+        errCounter.increment();
+        if (result == null) {
+            throw new CompletionException(
+                    new DeleteTimeoutException(
+                            String.format(
+                                    "Deletion of a %s %s failed! Orchestrator did not report the result.",
+                                    kind,
+                                    id)));
+        }
+        throw new CompletionException(
+                new OrchInteractionException(
+                        String.format(
+                                "Deletion of a %s %s failed! Orchestrator reported a failure: [status=%s, message=%s].",
+                                kind,
+                                id,
+                                result.getStatus(),
+                                result.getMessage())));
+    }
+
+    /**
+     * Waits for the completion of an asynchronous delete operation.
+     *
+     * @param deletion the delete operation
+     * @throws OrchInteractionException Thrown if deletion fails with an error
+     */
+    private void join(CompletionStage<Void> deletion) throws OrchInteractionException {
+        try {
+            deletion.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof OrchInteractionException) {
+                throw (OrchInteractionException) e.getCause();
+            }
+            throw e;
         }
     }
 
@@ -20,6 +20,7 @@ package org.jboss.pnc.cleaner.temporaryBuilds;
 import io.micrometer.core.annotation.Timed;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.pnc.common.util.TimeUtils;
 import org.jboss.pnc.dto.Build;
@@ -28,12 +29,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.jboss.pnc.cleaner.temporaryBuilds.TemporaryBuildsWorkQueue.Kind.BUILD;
+import static org.jboss.pnc.cleaner.temporaryBuilds.TemporaryBuildsWorkQueue.Kind.GROUP_BUILD;
 
 /**
  * Deletes temporary builds via Orchestrator REST API
@@ -50,6 +69,22 @@ public class TemporaryBuildsCleanerImpl implements TemporaryBuildsCleaner {
     @ConfigProperty(name = "temporaryBuildsCleaner.lifespan")
     Integer TEMPORARY_BUILD_LIFESPAN;
 
+    /** Maximum number of temporary build deletes waiting for their Orchestrator callbacks at the same time. */
+    @ConfigProperty(name = "temporaryBuildsCleaner.concurrency", defaultValue = "1")
+    int concurrency;
+
+    /** File with the durable work queue of deletions allowing to resume them after a restart. Disabled if not set. */
+    @ConfigProperty(name = "temporaryBuildsCleaner.workqueue.file")
+    Optional<String> workQueueFile;
+
+    /** Hours before the first retry of a failed deletion, the delay doubles with every further failure. */
+    @ConfigProperty(name = "temporaryBuildsCleaner.workqueue.backoff.initial", defaultValue = "1")
+    long initialBackoffHours;
+
+    /** Maximum hours before a retry of a failed deletion. */
+    @ConfigProperty(name = "temporaryBuildsCleaner.workqueue.backoff.max", defaultValue = "672")
+    long maxBackoffHours;
+
     @Inject
     TemporaryBuildsCleanerAdapter temporaryBuildsCleanerAdapter;
 
@@ -58,62 +93,386 @@ public class TemporaryBuildsCleanerImpl implements TemporaryBuildsCleaner {
 
     private Counter warnCounter;
 
+    private Counter deletedBuildsCounter;
+
+    private Counter deletedGroupBuildsCounter;
+
+    /** Builds deleted in the current run. */
+    private final AtomicInteger runDeletedBuilds = new AtomicInteger();
+
+    /** Group builds deleted in the current run. */
+    private final AtomicInteger runDeletedGroupBuilds = new AtomicInteger();
+
+    /** Builds deleted per minute in the last finished run. */
+    private volatile double buildsThroughput;
+
+    /** Group builds deleted per minute in the last finished run. */
+    private volatile double groupBuildsThroughput;
+
+    private TemporaryBuildsWorkQueue workQueue;
+
     @PostConstruct
-    void initMetrics() {
+    void init() {
         warnCounter = registry.counter(className + ".warning.count");
+        deletedBuildsCounter = registry.counter(className + ".deleted.count", Tags.of("kind", "build"));
+        deletedGroupBuildsCounter = registry.counter(className + ".deleted.count", Tags.of("kind", "group-build"));
+        registry.gauge(className + ".throughput", Tags.of("kind", "build"), this, c -> c.buildsThroughput);
+        registry.gauge(className + ".throughput", Tags.of("kind", "group-build"), this, c -> c.groupBuildsThroughput);
+        workQueue = openWorkQueue();
+    }
+
+    @PreDestroy
+    void closeWorkQueue() {
+        try {
+            workQueue.close();
+        } catch (IOException e) {
+            log.warn("Failed to close the temporary builds work queue.", e);
+        }
+    }
+
+    /**
+     * Opens the durable work queue if its file is configured.
+     *
+     * @return the opened work queue or a disabled one if it is not configured or it cannot be opened
+     */
+    TemporaryBuildsWorkQueue openWorkQueue() {
+        if (workQueueFile.isPresent()) {
+            try {
+                return TemporaryBuildsWorkQueue.open(
+                        Paths.get(workQueueFile.get()),
+                        Duration.ofHours(initialBackoffHours),
+                        Duration.ofHours(maxBackoffHours));
+            } catch (IOException e) {
+                warnCounter.increment();
+                log.warn("Failed to open the temporary builds work queue. Deletions will not be resumable.", e);
+            }
+        }
+        return TemporaryBuildsWorkQueue.disabled();
+    }
+
+    @Timed
+    @Override
+    public synchronized void resumeUnfinishedDeletions() {
+        List<String> groupBuildIds = workQueue.getUnfinished(GROUP_BUILD);
+        List<String> buildIds = workQueue.getUnfinished(BUILD);
+        if (groupBuildIds.isEmpty() && buildIds.isEmpty()) {
+            return;
+        }
+        log.info(
+                "Resuming deletion of {} temporary group builds and {} temporary builds left unfinished.",
+                groupBuildIds.size(),
+                buildIds.size());
+        Semaphore inFlight = new Semaphore(concurrency);
+        try {
+            for (String groupBuildId : groupBuildIds) {
+                startGroupBuildDeletion(groupBuildId, inFlight);
+            }
+        } catch (InterruptedException e) {
+            onInterrupted(e);
+            return;
+        }
+        // only the IDs of the builds are known, so the builds of the group builds cannot be deferred, their deletes
+        // fail if the group build deletion deletes them first and they are dropped from the queue by the next run
+        List<Build> builds = buildIds.stream().map(id -> Build.builder().id(id).build()).collect(Collectors.toList());
+        deleteBuilds(
+                builds,
+                inFlight,
+                Collections.emptyMap(),
+                new ArrayList<>(),
+                ConcurrentHashMap.newKeySet(),
+                ConcurrentHashMap.newKeySet());
+        workQueue.compact();
+        log.info("Resumed deletion of temporary builds finished.");
     }
 
+    /**
+     * Deletes expired temporary group builds and independent builds. The phases are pipelined, the builds are looked
+     * for and deleted while the group build deletes are still waiting for their callbacks. Deleting a group build
+     * deletes its builds too, so a build of a group build deleted in this run is deferred until the group build
+     * deletion finishes and it is deleted only if the group build deletion failed. Both phases share the limit of
+     * deletes in flight, so Orchestrator does not get more requests than with the phases run one after the other.
+     */
     @Timed
     @Override
-    public void cleanupExpiredTemporaryBuilds() {
+    public synchronized void cleanupExpiredTemporaryBuilds() {
         log.info(
                 "Regular cleanup of expired temporary builds started. Removing builds older than "
                         + TEMPORARY_BUILD_LIFESPAN + " days.");
         Date expirationThreshold = TimeUtils.getDateXDaysAgo(TEMPORARY_BUILD_LIFESPAN);
+        long start = System.nanoTime();
+        runDeletedBuilds.set(0);
+        runDeletedGroupBuilds.set(0);
 
-        deleteExpiredBuildConfigSetRecords(expirationThreshold);
-        deleteExpiredBuildRecords(expirationThreshold);
+        Semaphore inFlight = new Semaphore(concurrency);
+        Map<String, CompletionStage<Void>> groupBuildDeletions;
+        try {
+            groupBuildDeletions = startGroupBuildDeletions(expirationThreshold, inFlight);
+        } catch (InterruptedException e) {
+            onInterrupted(e);
+            return;
+        }
+        if (!deleteExpiredBuildRecords(expirationThreshold, inFlight, groupBuildDeletions)) {
+            return;
+        }
+        workQueue.complete();
+        updateThroughput(start);
 
         log.info("Regular cleanup of expired temporary builds finished.");
     }
 
     @Timed
     void deleteExpiredBuildConfigSetRecords(Date expirationThreshold) {
+        Semaphore inFlight = new Semaphore(concurrency);
+        try {
+            startGroupBuildDeletions(expirationThreshold, inFlight);
+            awaitDeletes(inFlight);
+        } catch (InterruptedException e) {
+            onInterrupted(e);
+        }
+    }
+
+    /**
+     * Starts deletes of expired temporary group builds keeping at most the configured number of deletes in flight. It
+     * does not wait for the deletes to finish.
+     *
+     * @param expirationThreshold group builds older than this are deleted
+     * @param inFlight permits of deletes in flight
+     * @return the started deletions indexed by the group build ID, completed exceptionally if the deletion failed
+     * @throws InterruptedException when interrupted while waiting for a permit
+     */
+    private Map<String, CompletionStage<Void>> startGroupBuildDeletions(Date expirationThreshold, Semaphore inFlight)
+            throws InterruptedException {
         Collection<GroupBuild> expiredBCSRecords = temporaryBuildsCleanerAdapter
                 .findTemporaryGroupBuildsOlderThan(expirationThreshold);
 
+        expiredBCSRecords.forEach(groupBuild -> workQueue.recordDiscovered(GROUP_BUILD, groupBuild.getId()));
+        Map<String, CompletionStage<Void>> deletions = new HashMap<>();
         for (GroupBuild groupBuild : expiredBCSRecords) {
-            try {
-                log.info("Deleting temporary BuildConfigSetRecord {}", groupBuild);
-                temporaryBuildsCleanerAdapter.deleteTemporaryGroupBuild(groupBuild.getId());
-                log.info("Temporary BuildConfigSetRecord {} was deleted successfully", groupBuild);
-            } catch (OrchInteractionException ex) {
-                warnCounter.increment();
-                log.warn("Deletion of temporary BuildConfigSetRecord {} failed!", groupBuild);
+            if (workQueue.isBackingOff(GROUP_BUILD, groupBuild.getId())) {
+                log.debug("Skipping temporary BuildConfigSetRecord {}, its deletion failed recently.", groupBuild);
+                continue;
             }
+            deletions.put(groupBuild.getId(), startGroupBuildDeletion(groupBuild.getId(), inFlight));
         }
+        return deletions;
+    }
+
+    private CompletionStage<Void> startGroupBuildDeletion(String groupBuildId, Semaphore inFlight)
+            throws InterruptedException {
+        inFlight.acquire();
+        log.info("Deleting temporary BuildConfigSetRecord {}", groupBuildId);
+        workQueue.recordInFlight(GROUP_BUILD, groupBuildId);
+        return temporaryBuildsCleanerAdapter.deleteTemporaryGroupBuildAsync(groupBuildId).whenComplete((result, e) -> {
+            try {
+                if (e == null) {
+                    workQueue.recordSucceeded(GROUP_BUILD, groupBuildId);
+                    deletedGroupBuildsCounter.increment();
+                    runDeletedGroupBuilds.incrementAndGet();
+                    log.info("Temporary BuildConfigSetRecord {} was deleted successfully", groupBuildId);
+                } else {
+                    warnCounter.increment();
+                    workQueue.recordFailed(GROUP_BUILD, groupBuildId);
+                    log.warn("Deletion of temporary BuildConfigSetRecord {} failed!", groupBuildId);
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
     }
 
     @Timed
     void deleteExpiredBuildRecords(Date expirationThreshold) {
-        Set<Build> failedBuilds = new HashSet<>();
-        Collection<Build> expiredBuilds = null;
-        do {
-            log.info("Doing an iteration of Temporary Builds deletion.");
-            expiredBuilds = temporaryBuildsCleanerAdapter.findTemporaryBuildsOlderThan(expirationThreshold);
-            expiredBuilds.removeAll(failedBuilds);
-            for (Build build : expiredBuilds) {
-                try {
-                    log.info("Deleting temporary build {}", build);
-                    temporaryBuildsCleanerAdapter.deleteTemporaryBuild(build.getId());
-                    log.info("Temporary build {} was deleted successfully", build);
-                } catch (OrchInteractionException ex) {
-                    warnCounter.increment();
-                    log.warn("Deletion of temporary build {} failed! Cause: {}", build, ex);
-                    failedBuilds.add(build);
+        deleteExpiredBuildRecords(expirationThreshold, new Semaphore(concurrency), Collections.emptyMap());
+    }
+
+    /**
+     * Deletes expired temporary builds. The builds are streamed page by page and the deletes are started as the pages
+     * arrive. The pages are read by a cursor following the last listed build, so the deletes do not shift the following
+     * pages and a single pass finds all the builds. Builds of the group builds being deleted are deferred until all the
+     * deletes of the pass finish. Builds of the deleted group builds are deleted with them, the rest of the deferred
+     * builds is deleted then. Builds, which did not get their callback in time, are retried once by their IDs after
+     * that, when their late callback may be already known. Builds, which failed to be deleted in a previous run, are
+     * skipped until their retry is due in the work queue.
+     *
+     * @param expirationThreshold builds older than this are deleted
+     * @param inFlight permits of deletes in flight, shared with the group build deletes
+     * @param groupBuildDeletions deletions of group builds started in this run indexed by the group build ID
+     * @return true if the deletes finished, false if the waiting was interrupted
+     */
+    private boolean deleteExpiredBuildRecords(
+            Date expirationThreshold,
+            Semaphore inFlight,
+            Map<String, CompletionStage<Void>> groupBuildDeletions) {
+        Set<String> failedBuildIds = ConcurrentHashMap.newKeySet();
+        Set<String> timedOutBuildIds = ConcurrentHashMap.newKeySet();
+        List<Build> deferredBuilds = new ArrayList<>();
+        Iterable<Build> expiredBuilds = temporaryBuildsCleanerAdapter
+                .iterateTemporaryBuildsOlderThan(expirationThreshold);
+        if (!deleteBuilds(
+                expiredBuilds,
+                inFlight,
+                groupBuildDeletions,
+                deferredBuilds,
+                failedBuildIds,
+                timedOutBuildIds)) {
+            return false;
+        }
+        if (!deleteDeferredBuilds(deferredBuilds, inFlight, groupBuildDeletions, failedBuildIds, timedOutBuildIds)) {
+            return false;
+        }
+        if (timedOutBuildIds.isEmpty()) {
+            return true;
+        }
+        log.info("Retrying deletion of {} temporary builds, which timed out.", timedOutBuildIds.size());
+        List<Build> timedOutBuilds = timedOutBuildIds.stream()
+                .map(id -> Build.builder().id(id).build())
+                .collect(Collectors.toList());
+        return deleteBuilds(
+                timedOutBuilds,
+                inFlight,
+                Collections.emptyMap(),
+                deferredBuilds,
+                failedBuildIds,
+                timedOutBuildIds);
+    }
+
+    /**
+     * Resolves the builds deferred because their group build was being deleted. All the group build deletions are
+     * finished at this point. A build of a deleted group build was deleted with it, so it is only recorded as
+     * succeeded. A build of a group build, which failed to be deleted, is deleted on its own.
+     *
+     * @return true if the deletes finished, false if the waiting was interrupted
+     */
+    private boolean deleteDeferredBuilds(
+            List<Build> deferredBuilds,
+            Semaphore inFlight,
+            Map<String, CompletionStage<Void>> groupBuildDeletions,
+            Set<String> failedBuildIds,
+            Set<String> timedOutBuildIds) {
+        List<Build> orphanedBuilds = new ArrayList<>();
+        for (Build build : deferredBuilds) {
+            String groupBuildId = build.getGroupBuild().getId();
+            if (groupBuildDeletions.get(groupBuildId).toCompletableFuture().isCompletedExceptionally()) {
+                orphanedBuilds.add(build);
+            } else {
+                log.info("Temporary build {} was deleted with its group build {}", build.getId(), groupBuildId);
+                workQueue.recordSucceeded(BUILD, build.getId());
+            }
+        }
+        if (orphanedBuilds.isEmpty()) {
+            return true;
+        }
+        log.info("Deleting {} temporary builds, which group build deletion failed.", orphanedBuilds.size());
+        return deleteBuilds(
+                orphanedBuilds,
+                inFlight,
+                Collections.emptyMap(),
+                deferredBuilds,
+                failedBuildIds,
+                timedOutBuildIds);
+    }
+
+    /**
+     * Deletes the builds keeping at most the configured number of deletes in flight and waits for all of them to
+     * finish. The calling thread only sends the delete requests, the deletes are completed by their callbacks. A build,
+     * which did not get its callback in time for the first time, is collected to be retried, otherwise it is recorded
+     * as failed.
+     *
+     * @param builds the deleted builds, they are iterated lazily
+     * @param inFlight permits of deletes in flight, they are all free again when this returns
+     * @param groupBuildDeletions deletions of group builds in flight indexed by the group build ID, their builds are
+     *        deferred
+     * @param deferredBuilds list collecting the deferred builds
+     * @param failedBuildIds set collecting IDs of builds, which failed to be deleted, they are skipped
+     * @param timedOutBuildIds set collecting IDs of builds, which did not get their callback in time
+     * @return true if the deletes finished, false if the waiting was interrupted
+     */
+    private boolean deleteBuilds(
+            Iterable<Build> builds,
+            Semaphore inFlight,
+            Map<String, CompletionStage<Void>> groupBuildDeletions,
+            List<Build> deferredBuilds,
+            Set<String> failedBuildIds,
+            Set<String> timedOutBuildIds) {
+        try {
+            try {
+                for (Build build : builds) {
+                    String buildId = build.getId();
+                    workQueue.recordDiscovered(BUILD, buildId);
+                    if (failedBuildIds.contains(buildId) || workQueue.isBackingOff(BUILD, buildId)) {
+                        continue;
+                    }
+                    if (build.getGroupBuild() != null
+                            && groupBuildDeletions.containsKey(build.getGroupBuild().getId())) {
+                        log.debug("Deferring temporary build {} until its group build is deleted.", buildId);
+                        deferredBuilds.add(build);
+                        continue;
+                    }
+                    inFlight.acquire();
+                    log.info("Deleting temporary build {}", buildId);
+                    workQueue.recordInFlight(BUILD, buildId);
+                    temporaryBuildsCleanerAdapter.deleteTemporaryBuildAsync(buildId).whenComplete((result, e) -> {
+                        try {
+                            if (e == null) {
+                                log.info("Temporary build {} was deleted successfully", buildId);
+                                workQueue.recordSucceeded(BUILD, buildId);
+                                deletedBuildsCounter.increment();
+                                runDeletedBuilds.incrementAndGet();
+                                return;
+                            }
+                            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                            warnCounter.increment();
+                            log.warn("Deletion of temporary build {} failed! Cause: {}", buildId, cause);
+                            if (!(cause instanceof DeleteTimeoutException) || !timedOutBuildIds.add(buildId)) {
+                                failedBuildIds.add(buildId);
+                                workQueue.recordFailed(BUILD, buildId);
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
                 }
+            } catch (RuntimeException e) {
+                // the next page of the builds could not be loaded, the pass ends with the builds loaded so far
+                warnCounter.increment();
+                log.warn("Loading of temporary builds failed! The iteration ends early.", e);
             }
-        } while (!expiredBuilds.isEmpty());
+            awaitDeletes(inFlight);
+            return true;
+        } catch (InterruptedException e) {
+            onInterrupted(e);
+            return false;
+        }
+    }
+
+    /**
+     * Computes the numbers of builds and group builds deleted per minute in the finished run.
+     *
+     * @param start start of the run in nanoseconds
+     */
+    private void updateThroughput(long start) {
+        double minutes = Math.max(System.nanoTime() - start, 1) / 60e9;
+        buildsThroughput = runDeletedBuilds.get() / minutes;
+        groupBuildsThroughput = runDeletedGroupBuilds.get() / minutes;
+        log.info(
+                "Deleted {} temporary builds and {} temporary group builds, {} builds and {} group builds per minute.",
+                runDeletedBuilds.get(),
+                runDeletedGroupBuilds.get(),
+                String.format("%.1f", buildsThroughput),
+                String.format("%.1f", groupBuildsThroughput));
+    }
+
+    /**
+     * Waits until all the started deletes are finished, which is when all the permits are free.
+     */
+    private void awaitDeletes(Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire(concurrency);
+        inFlight.release(concurrency);
+    }
 
+    private void onInterrupted(InterruptedException e) {
+        warnCounter.increment();
+        log.warn("Interrupted while deleting temporary builds.", e);
+        Thread.currentThread().interrupt();
     }
 }
@@ -17,11 +17,13 @@
  */
 package org.jboss.pnc.cleaner.temporaryBuilds;
 
+import io.quarkus.runtime.StartupEvent;
 import io.quarkus.scheduler.Scheduled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 
 /**
@@ -46,4 +48,20 @@ public class TemporaryBuildsCleanupScheduler {
         temporaryBuildsCleanupScheduleWorker.cleanupExpiredTemporaryBuilds();
         log.info("Regular deletion of temporary builds successfully finished.");
     }
+
+    /**
+     * Resumes deletions left unfinished by the previous run of the application. They are resumed in the background, so
+     * the startup is not delayed and the deletion callbacks can be received.
+     */
+    void resumeOnStartup(@Observes StartupEvent event) {
+        Thread thread = new Thread(() -> {
+            try {
+                temporaryBuildsCleanupScheduleWorker.resumeUnfinishedDeletions();
+            } catch (RuntimeException e) {
+                log.error("Resuming of unfinished temporary builds deletions failed.", e);
+            }
+        }, "temporary-builds-resume");
+        thread.setDaemon(true);
+        thread.start();
+    }
 }
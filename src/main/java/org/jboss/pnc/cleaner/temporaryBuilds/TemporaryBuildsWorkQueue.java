@@ -0,0 +1,330 @@
+package org.jboss.pnc.cleaner.temporaryBuilds;
+
+import org.jboss.pnc.cleaner.common.AppendOnlyLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Durable work queue of temporary build deletions. The state of every build and group build handled by the cleaner is
+ * kept in a write-ahead log in a local file, so the deletions survive restarts of the cleaner. Deletions left in flight
+ * are resumed without listing all the temporary builds again and failed deletions are retried with an exponential
+ * backoff across the runs. Succeeded deletions are dropped from the queue when the log is compacted.
+ * <p>
+ * The file contains one record per line, the kind is <code>B</code> for builds and <code>G</code> for group builds:
+ * <ul>
+ * <li><code>N &lt;kind&gt; &lt;id&gt;</code> - the deletion was discovered</li>
+ * <li><code>I &lt;kind&gt; &lt;id&gt;</code> - the deletion was started</li>
+ * <li><code>S &lt;kind&gt; &lt;id&gt;</code> - the deletion succeeded</li>
+ * <li><code>F &lt;kind&gt; &lt;id&gt; &lt;attempts&gt; &lt;nextAttempt&gt;</code> - the deletion failed, it is not
+ * retried before the next attempt timestamp in milliseconds</li>
+ * </ul>
+ * The state is updated right away, but the records are written to the file by a single background thread in the order
+ * they were made. The deletions are mostly recorded by their completion callbacks on the callback timer thread, which
+ * must not wait for the disk.
+ */
+public class TemporaryBuildsWorkQueue implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TemporaryBuildsWorkQueue.class);
+
+    public enum Kind {
+        BUILD("B"), GROUP_BUILD("G");
+
+        private final String code;
+
+        Kind(String code) {
+            this.code = code;
+        }
+    }
+
+    private enum State {
+        DISCOVERED, IN_FLIGHT, FAILED
+    }
+
+    private static final class Entry {
+        private State state = State.DISCOVERED;
+        private int attempts;
+        private long nextAttempt;
+    }
+
+    private final Path file;
+
+    private final Duration initialBackoff;
+
+    private final Duration maxBackoff;
+
+    private final Clock clock;
+
+    /** Entries of unfinished deletions keyed by the kind code and the id, in the order of discovery. */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /** Keys of the deletions discovered since the queue was opened. */
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+    private AppendOnlyLog log;
+
+    /** Writes the records to the log in the order they were made. */
+    private ExecutorService logWriter;
+
+    private TemporaryBuildsWorkQueue(Path file, Duration initialBackoff, Duration maxBackoff, Clock clock) {
+        this.file = file;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.clock = clock;
+    }
+
+    /**
+     * Creates a work queue, which does not record anything and never backs off. It is used when the work queue file is
+     * not configured.
+     *
+     * @return the disabled work queue
+     */
+    public static TemporaryBuildsWorkQueue disabled() {
+        return new TemporaryBuildsWorkQueue(null, Duration.ZERO, Duration.ZERO, Clock.systemUTC());
+    }
+
+    /**
+     * Opens the work queue. If the file already exists, the unfinished deletions are loaded from it and new records are
+     * appended to it.
+     *
+     * @param file the work queue file
+     * @param initialBackoff delay of the retry after the first failure, it doubles with every further failure
+     * @param maxBackoff maximum delay of a retry
+     * @return the opened work queue
+     * @throws IOException in case of an error when reading or opening the work queue file
+     */
+    public static TemporaryBuildsWorkQueue open(Path file, Duration initialBackoff, Duration maxBackoff)
+            throws IOException {
+        return open(file, initialBackoff, maxBackoff, Clock.systemUTC());
+    }
+
+    static TemporaryBuildsWorkQueue open(Path file, Duration initialBackoff, Duration maxBackoff, Clock clock)
+            throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        TemporaryBuildsWorkQueue queue = new TemporaryBuildsWorkQueue(file, initialBackoff, maxBackoff, clock);
+        if (Files.exists(file)) {
+            queue.load();
+            logger.info("Loaded temporary builds work queue {} with {} unfinished deletions.", file, queue.size());
+        }
+        queue.log = AppendOnlyLog.open(file, "temporary builds work queue");
+        queue.logWriter = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "temporary-builds-work-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return queue;
+    }
+
+    public synchronized void recordDiscovered(Kind kind, String id) {
+        if (file == null) {
+            return;
+        }
+        String key = key(kind, id);
+        seen.add(key);
+        if (!entries.containsKey(key)) {
+            entries.put(key, new Entry());
+            append("N " + key);
+        }
+    }
+
+    public synchronized void recordInFlight(Kind kind, String id) {
+        if (file == null) {
+            return;
+        }
+        String key = key(kind, id);
+        entries.computeIfAbsent(key, k -> new Entry()).state = State.IN_FLIGHT;
+        append("I " + key);
+    }
+
+    public synchronized void recordSucceeded(Kind kind, String id) {
+        if (file == null) {
+            return;
+        }
+        String key = key(kind, id);
+        entries.remove(key);
+        append("S " + key);
+    }
+
+    /**
+     * Records a failed deletion and schedules its retry. The retry delay doubles with every failure of the deletion up
+     * to the maximum backoff.
+     *
+     * @param kind kind of the deleted build
+     * @param id id of the deleted build
+     */
+    public synchronized void recordFailed(Kind kind, String id) {
+        if (file == null) {
+            return;
+        }
+        String key = key(kind, id);
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        entry.state = State.FAILED;
+        entry.attempts++;
+        entry.nextAttempt = clock.millis() + getBackoff(entry.attempts).toMillis();
+        append("F " + key + " " + entry.attempts + " " + entry.nextAttempt);
+    }
+
+    /**
+     * Checks if a failed deletion should not be retried yet.
+     *
+     * @param kind kind of the deleted build
+     * @param id id of the deleted build
+     * @return true if the deletion failed and its next attempt is in the future
+     */
+    public synchronized boolean isBackingOff(Kind kind, String id) {
+        Entry entry = entries.get(key(kind, id));
+        return entry != null && entry.state == State.FAILED && entry.nextAttempt > clock.millis();
+    }
+
+    /**
+     * Gets the deletions, which were discovered or started, but not finished.
+     *
+     * @param kind kind of the deleted builds
+     * @return ids of the unfinished deletions in the order of discovery
+     */
+    public synchronized List<String> getUnfinished(Kind kind) {
+        String prefix = kind.code + " ";
+        return entries.entrySet()
+                .stream()
+                .filter(e -> e.getKey().startsWith(prefix) && e.getValue().state != State.FAILED)
+                .map(e -> e.getKey().substring(prefix.length()))
+                .collect(Collectors.toList());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Finishes a full run of the cleanup. Failed deletions, which were not discovered again, are dropped, because the
+     * builds are not expired temporary builds anymore, and the log is compacted.
+     */
+    public synchronized void complete() {
+        if (file == null) {
+            return;
+        }
+        entries.entrySet().removeIf(e -> e.getValue().state == State.FAILED && !seen.contains(e.getKey()));
+        seen.clear();
+        compact();
+    }
+
+    /**
+     * Rewrites the log, so it contains only a single record for every unfinished deletion.
+     */
+    public synchronized void compact() {
+        if (file == null || !log.isOpen()) {
+            return;
+        }
+        List<String> records = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            switch (entry.state) {
+                case DISCOVERED:
+                    records.add("N " + e.getKey());
+                    break;
+                case IN_FLIGHT:
+                    records.add("I " + e.getKey());
+                    break;
+                case FAILED:
+                    records.add("F " + e.getKey() + " " + entry.attempts + " " + entry.nextAttempt);
+                    break;
+            }
+        }
+        // the records made after this snapshot are queued after the rewrite, so they are appended to the new log
+        write(() -> log.rewrite(records));
+    }
+
+    /**
+     * Writes the pending records and closes the log.
+     *
+     * @throws IOException in case of an error when closing the log
+     */
+    @Override
+    public void close() throws IOException {
+        if (logWriter == null) {
+            return;
+        }
+        logWriter.shutdown();
+        try {
+            if (!logWriter.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Writing of temporary builds work queue {} did not finish in time.", file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    private Duration getBackoff(int attempts) {
+        // the shift is capped to avoid an overflow, the result is capped by the maximum backoff anyway
+        Duration backoff = initialBackoff.multipliedBy(1L << Math.min(attempts - 1, 30));
+        return backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff;
+    }
+
+    private void append(String record) {
+        write(() -> log.append(record));
+    }
+
+    private void write(Runnable write) {
+        try {
+            logWriter.execute(write);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Temporary builds work queue {} is closed, a record is not written.", file);
+        }
+    }
+
+    private void load() throws IOException {
+        for (String line : AppendOnlyLog.readRecords(file)) {
+            String[] parts = line.split(" ");
+            if (parts.length < 3) {
+                continue;
+            }
+            String key = parts[1] + " " + parts[2];
+            switch (parts[0]) {
+                case "N":
+                    entries.putIfAbsent(key, new Entry());
+                    break;
+                case "I":
+                    entries.computeIfAbsent(key, k -> new Entry()).state = State.IN_FLIGHT;
+                    break;
+                case "S":
+                    entries.remove(key);
+                    break;
+                case "F":
+                    if (parts.length == 5) {
+                        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+                        entry.state = State.FAILED;
+                        entry.attempts = Integer.parseInt(parts[3]);
+                        entry.nextAttempt = Long.parseLong(parts[4]);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static String key(Kind kind, String id) {
+        return kind.code + " " + id;
+    }
+
+}
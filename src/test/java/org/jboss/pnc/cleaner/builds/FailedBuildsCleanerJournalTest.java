@@ -0,0 +1,123 @@
+package org.jboss.pnc.cleaner.builds;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FailedBuildsCleanerJournalTest {
+
+    private static final Instant LIMIT = Instant.ofEpochMilli(1581174847000L);
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Tests resuming of an interrupted run. It records decisions and a completed cleanup, reopens the journal and
+     * expects the records to be loaded and the run to be reported as unfinished.
+     */
+    @Test
+    void resumeInterruptedRun() throws IOException {
+        FailedBuildsCleanerJournal journal = FailedBuildsCleanerJournal.open(dir, LIMIT);
+        journal.recordDecision("build-36000", true);
+        journal.recordDecision("build-36001", false);
+        journal.recordCompleted("build-36000");
+        journal.close();
+
+        assertEquals(Optional.of(LIMIT), FailedBuildsCleanerJournal.findUnfinishedRun(dir));
+
+        FailedBuildsCleanerJournal resumed = FailedBuildsCleanerJournal.open(dir, LIMIT);
+        assertEquals(Boolean.TRUE, resumed.getDecision("build-36000"));
+        assertEquals(Boolean.FALSE, resumed.getDecision("build-36001"));
+        assertNull(resumed.getDecision("build-36002"));
+        assertTrue(resumed.isCompleted("build-36000"));
+        assertFalse(resumed.isCompleted("build-36001"));
+        resumed.close();
+    }
+
+    /**
+     * Tests loading of a journal, which was interrupted while writing a record. It expects the incomplete record to be
+     * ignored.
+     */
+    @Test
+    void ignoreIncompleteRecord() throws IOException {
+        FailedBuildsCleanerJournal journal = FailedBuildsCleanerJournal.open(dir, LIMIT);
+        journal.recordDecision("build-36000", true);
+        journal.close();
+        Path file = dir.resolve("failed-builds-" + LIMIT.toEpochMilli() + ".journal");
+        Files.write(file, "D 1 build-3600".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        FailedBuildsCleanerJournal resumed = FailedBuildsCleanerJournal.open(dir, LIMIT);
+        assertEquals(Boolean.TRUE, resumed.getDecision("build-36000"));
+        assertNull(resumed.getDecision("build-3600"));
+        resumed.close();
+    }
+
+    /**
+     * Tests completion of a run. It expects the journal to be compacted, journals of other runs to be deleted and no
+     * run to be reported as unfinished.
+     */
+    @Test
+    void completeRun() throws IOException {
+        FailedBuildsCleanerJournal older = FailedBuildsCleanerJournal.open(dir, LIMIT.minusSeconds(86400));
+        older.recordDecision("build-35000", true);
+        older.close();
+
+        FailedBuildsCleanerJournal journal = FailedBuildsCleanerJournal.open(dir, LIMIT);
+        journal.recordDecision("build-36000", true);
+        journal.recordCompleted("build-36000");
+        journal.complete();
+
+        assertEquals(Optional.empty(), FailedBuildsCleanerJournal.findUnfinishedRun(dir));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+        FailedBuildsCleanerJournal reopened = FailedBuildsCleanerJournal.open(dir, LIMIT);
+        assertNull(reopened.getDecision("build-36000"));
+        reopened.close();
+    }
+
+    /**
+     * Tests completion of a shard of a sharded run. It expects journals of older runs to be deleted, the journal of the
+     * other shard of the run to be kept and the run to be reported as unfinished until all its shards complete.
+     */
+    @Test
+    void completeShard() throws IOException {
+        FailedBuildsCleanerJournal older = FailedBuildsCleanerJournal.open(dir, LIMIT.minusSeconds(86400), 1);
+        older.recordDecision("build-35000", true);
+        older.close();
+        FailedBuildsCleanerJournal other = FailedBuildsCleanerJournal.open(dir, LIMIT, 1);
+        other.recordDecision("build-36001", false);
+        other.close();
+
+        FailedBuildsCleanerJournal journal = FailedBuildsCleanerJournal.open(dir, LIMIT, 0);
+        journal.recordDecision("build-36000", true);
+        journal.complete();
+
+        assertEquals(Optional.of(LIMIT), FailedBuildsCleanerJournal.findUnfinishedRun(dir));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+        FailedBuildsCleanerJournal reopened = FailedBuildsCleanerJournal.open(dir, LIMIT, 0);
+        assertTrue(reopened.isFinished());
+        reopened.close();
+        FailedBuildsCleanerJournal resumed = FailedBuildsCleanerJournal.open(dir, LIMIT, 1);
+        assertFalse(resumed.isFinished());
+        assertEquals(Boolean.FALSE, resumed.getDecision("build-36001"));
+        resumed.complete();
+
+        assertEquals(Optional.empty(), FailedBuildsCleanerJournal.findUnfinishedRun(dir));
+    }
+}
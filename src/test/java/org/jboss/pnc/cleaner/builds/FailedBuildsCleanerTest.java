@@ -1,11 +1,15 @@
 package org.jboss.pnc.cleaner.builds;
 
 import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.test.junit.QuarkusMock;
 import io.quarkus.test.junit.QuarkusTest;
 
 import com.github.tomakehurst.wiremock.WireMockServer;
 
 import org.commonjava.indy.client.core.Indy;
+import org.commonjava.indy.client.core.IndyClientException;
 import org.commonjava.indy.model.core.StoreKey;
 import org.commonjava.indy.model.core.StoreType;
 import org.jboss.pnc.cleaner.common.TestConstants;
@@ -19,20 +23,30 @@ import javax.inject.Inject;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.delete;
 import static com.github.tomakehurst.wiremock.client.WireMock.deleteRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
-import static com.github.tomakehurst.wiremock.client.WireMock.head;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static org.commonjava.indy.model.core.GenericPackageTypeDescriptor.GENERIC_PKG_KEY;
+import static org.commonjava.indy.pkg.maven.model.MavenPackageTypeDescriptor.MAVEN_PKG_KEY;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @QuarkusTest
@@ -50,6 +64,8 @@ class FailedBuildsCleanerTest {
 
     private static final String INDY_GENERIC_GROUPS_FILE = "indyGenericGroups.json";
 
+    private static final String INDY_GENERIC_GROUPS_HOST_WITH_BUILD_FILE = "indyGenericGroupsHostWithBuild.json";
+
     private static final String INDY_MAVEN_GROUPS_FILE = "indyMavenGroups.json";
 
     private static final String INDY_MAVEN_GROUPS_NO_BUILD_GROUP_FILE = "indyMavenGroupsNoBuildGroup.json";
@@ -64,6 +80,10 @@ class FailedBuildsCleanerTest {
 
     private static final String BUILD_RECORDS_NOT_FAILED_FILE = "buildRecordsNotFailed.json";
 
+    private static final String BUILD_RECORDS_BATCH_FILE = "buildRecordsBatch.json";
+
+    private static final String BUILD_RECORDS_BY_CONTENT_ID_FILE = "buildRecordsByContentId.json";
+
     private static final String EMPTY_RESPONSE_FILE = "emptyResponse.json";
 
     private WireMockServer orchWireMockServer = new WireMockServer(options().port(8082));
@@ -73,6 +93,12 @@ class FailedBuildsCleanerTest {
     @Inject
     private FailedBuildsCleaner failedBuildsCleaner;
 
+    @Inject
+    private IndyClientHolder indyClientHolder;
+
+    @Inject
+    private MeterRegistry registry;
+
     private ResponseDefinitionBuilder EMPTY_RESPONSE = aResponse().withStatus(200)
             .withBodyFile(EMPTY_RESPONSE_FILE)
             .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
@@ -102,10 +128,10 @@ class FailedBuildsCleanerTest {
                                 .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
                                 .withBodyFile(INDY_MAVEN_GROUPS_FILE)));
 
-        // limit nor auth token is not important for getting group names
+        // limit is not important for getting group names
         Instant limit = Instant.now();
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         List<String> groupNames = failedBuildsCleaner.getGroupNames(session);
 
@@ -113,6 +139,10 @@ class FailedBuildsCleanerTest {
         assertTrue(groupNames.contains("build_wildfly-swarm-keycloak-config-api_20170310.1332"));
         assertTrue(groupNames.contains("build-32064"));
         assertTrue(groupNames.contains("build-30573"));
+        // the shared client authenticates every request with the current service account token
+        indyWireMockServer.verify(
+                getRequestedFor(urlEqualTo(INDY_STORE_MAVEN_GROUP))
+                        .withHeader(HttpHeaders.AUTHORIZATION, equalTo("Bearer Mocked token")));
     }
 
     /**
@@ -127,10 +157,10 @@ class FailedBuildsCleanerTest {
                                 .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
                                 .withBodyFile(INDY_MAVEN_GROUPS_NO_BUILD_GROUP_FILE)));
 
-        // limit nor auth token is not important for getting group names
+        // limit is not important for getting group names
         Instant limit = Instant.now();
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         List<String> groupNames = failedBuildsCleaner.getGroupNames(session);
 
@@ -151,9 +181,8 @@ class FailedBuildsCleanerTest {
 
         // limit is set to be after the build record end time
         Instant limit = Instant.ofEpochMilli(1581174847000L);
-        // auth token is not important for the test
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         boolean clean = failedBuildsCleaner.shouldClean("build-36000", session);
 
@@ -178,9 +207,8 @@ class FailedBuildsCleanerTest {
 
         // limit is set to be after the build record end time
         Instant limit = Instant.ofEpochMilli(1581174847000L);
-        // auth token is not important for the test
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         boolean clean = failedBuildsCleaner.shouldClean("build-36000", session);
 
@@ -205,9 +233,8 @@ class FailedBuildsCleanerTest {
 
         // limit is set to be before the build record end time
         Instant limit = Instant.ofEpochMilli(1573174447816L);
-        // auth token is not important for the test
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         boolean clean = failedBuildsCleaner.shouldClean("build-36000", session);
 
@@ -227,9 +254,8 @@ class FailedBuildsCleanerTest {
 
         // limit is set to be after the build record end time
         Instant limit = Instant.ofEpochMilli(1573174847816L);
-        // auth token is not important for the test
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         boolean clean = failedBuildsCleaner.shouldClean("build-36002", session);
 
@@ -250,9 +276,8 @@ class FailedBuildsCleanerTest {
 
         // limit is set to be 6.6 days before the build start time
         Instant limit = Instant.ofEpochMilli(1573756869934L);
-        // auth token is not important for the test
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         boolean clean = failedBuildsCleaner.shouldClean("build-36735", session);
 
@@ -273,15 +298,117 @@ class FailedBuildsCleanerTest {
 
         // limit is set to be after the build record end time
         Instant limit = Instant.ofEpochMilli(1573175914256L);
-        // auth token is not important for the test
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         boolean clean = failedBuildsCleaner.shouldClean("build-36001", session);
 
         assertFalse(clean);
     }
 
+    /**
+     * Tests the decision cache. A successful persistent build is checked in PNC once and the decision is cached. It
+     * expects the second check to be answered from the cache without asking PNC and the saved cache to keep only
+     * groups, which still exist.
+     */
+    @Test
+    public void shouldCleanNotFailedCached() throws CleanerException, IOException {
+        orchWireMockServer.stubFor(
+                get(urlMatching(ORCH_BUILDS + "?.*q=buildContentId%3D%3Dbuild-36001")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(BUILD_RECORDS_NOT_FAILED_FILE)));
+
+        Path cacheFile = Files.createTempFile("decision-cache", null);
+        try {
+            // limit is set to be after the build record end time
+            Instant limit = Instant.ofEpochMilli(1573175914256L);
+            Indy indyClient = indyClientHolder.getIndy();
+            FailedBuildsCleanerSession session = newSession(indyClient, limit);
+            session.setDecisionCache(FailedBuildsDecisionCache.load(cacheFile));
+
+            assertFalse(failedBuildsCleaner.shouldClean("build-36001", session));
+            assertFalse(failedBuildsCleaner.shouldClean("build-36001", session));
+            orchWireMockServer.verify(1, getRequestedFor(urlMatching(ORCH_BUILDS + ".*")));
+
+            session.getDecisionCache().add("build-35000");
+            session.getDecisionCache().save();
+            FailedBuildsDecisionCache loaded = FailedBuildsDecisionCache.load(cacheFile);
+            assertEquals(1, loaded.retainExisting(List.of("build-36000", "build-36001")));
+            assertTrue(loaded.contains("build-36001"));
+            assertFalse(loaded.contains("build-35000"));
+        } finally {
+            Files.deleteIfExists(cacheFile);
+        }
+    }
+
+    /**
+     * Tests the reverse-join mode. The failed builds query returns a single failed build. It expects its group to be
+     * cleaned and its end time to be tracked as due, and the other group to be kept, both without looking them up.
+     */
+    @Test
+    public void shouldCleanReverseJoin() throws CleanerException {
+        orchWireMockServer.stubFor(
+                get(urlMatching(ORCH_BUILDS + "?.*q=status%3Din%3D.*")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(BUILD_RECORDS_FAILED_FILE)));
+
+        // limit is set to be after the build record end time
+        Instant limit = Instant.ofEpochMilli(1581174847000L);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
+        session.setFailedBuilds(failedBuildsCleaner.loadFailedBuilds(session));
+
+        assertEquals(1, session.getFailedBuilds().size());
+        assertTrue(failedBuildsCleaner.shouldClean("build-36000", session));
+        assertFalse(failedBuildsCleaner.shouldClean("build-36001", session));
+        assertEquals(Instant.parse("2020-02-01T12:59:00.678Z"), session.getOldestDueBuildEndTime());
+        orchWireMockServer.verify(1, getRequestedFor(urlMatching(ORCH_BUILDS + ".*")));
+        assertEquals(1, session.getPncCalls());
+    }
+
+    /**
+     * Tests loading of failed builds spanning two pages in the reverse-join mode. It expects the second page to be
+     * queried for the builds following the last build of the first page and both pages to be counted as PNC calls.
+     */
+    @Test
+    public void loadFailedBuildsPages() {
+        orchWireMockServer.stubFor(
+                get(urlMatching(ORCH_BUILDS + "?.*q=status%3Din%3D[^&]*")).atPriority(2)
+                        .willReturn(failedBuildsPage(37000, 50)));
+        orchWireMockServer.stubFor(
+                get(urlMatching(ORCH_BUILDS + "?.*q=status%3Din%3D.*id%3Dgt%3D37049.*")).atPriority(1)
+                        .willReturn(failedBuildsPage(37050, 1)));
+
+        Instant limit = Instant.ofEpochMilli(1581174847000L);
+        FailedBuildsCleanerSession session = newSession(indyClientHolder.getIndy(), limit);
+        FailedBuildsIdSet failedBuilds = failedBuildsCleaner.loadFailedBuilds(session);
+
+        assertEquals(51, failedBuilds.size());
+        assertTrue(failedBuilds.contains("build-37000"));
+        assertTrue(failedBuilds.contains("build-37050"));
+        assertEquals(2, session.getPncCalls());
+        orchWireMockServer.verify(2, getRequestedFor(urlMatching(ORCH_BUILDS + ".*")));
+    }
+
+    private ResponseDefinitionBuilder failedBuildsPage(int firstId, int count) {
+        StringBuilder content = new StringBuilder();
+        for (int id = firstId; id < firstId + count; id++) {
+            content.append(content.length() == 0 ? "" : ",")
+                    .append("{\"id\": \"")
+                    .append(id)
+                    .append("\", \"buildContentId\": \"build-")
+                    .append(id)
+                    .append("\", \"status\": \"FAILED\", \"endTime\": \"2020-02-01T12:59:00.678Z\"}");
+        }
+        return aResponse().withStatus(200)
+                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                .withBody(
+                        "{\"pageIndex\": 0, \"pageSize\": 50, \"totalPages\": 1, \"totalHits\": " + count
+                                + ", \"content\": [" + content + "]}");
+    }
+
     /**
      * Tests the logic saying if a build's repos should be cleaned or not. This test checks a failed build which is too
      * young to be cleaned and expects it should NOT be cleaned.
@@ -296,15 +423,61 @@ class FailedBuildsCleanerTest {
 
         // limit is set to be before the build record end time
         Instant limit = Instant.ofEpochMilli(1573174447816L);
-        // auth token is not important for the test
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         boolean clean = failedBuildsCleaner.shouldClean("build-36000", session);
 
         assertFalse(clean);
     }
 
+    /**
+     * Tests resolving of build records for a batch of groups. The build-NNN groups are resolved by a single query by
+     * IDs, which returns a failed and a successful build and a failed build with a different buildContentId, the other
+     * two builds are not found. They are looked up by buildContentId along with the legacy group and the mismatched
+     * build and a successful build with a different ID is found for one of them. It expects the failed, the mismatched
+     * and the missing builds to be cleaned and the found one kept without any per-group query.
+     */
+    @Test
+    public void resolveBuildRecordsBatch() throws CleanerException {
+        orchWireMockServer.stubFor(
+                get(urlMatching(ORCH_BUILDS + "?.*q=id%3Din%3D.*")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(BUILD_RECORDS_BATCH_FILE)));
+        orchWireMockServer.stubFor(
+                get(urlMatching(ORCH_BUILDS + "?.*q=buildContentId%3Din%3D.*")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(BUILD_RECORDS_BY_CONTENT_ID_FILE)));
+
+        // limit is set to be after the build record end time
+        Instant limit = Instant.ofEpochMilli(1581174847000L);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
+
+        failedBuildsCleaner.resolveBuildRecords(
+                List.of(
+                        "build-36000",
+                        "build-36001",
+                        "build-36002",
+                        "build-36003",
+                        "build-36004",
+                        "build_legacy_20170301.1200"),
+                session);
+
+        assertTrue(failedBuildsCleaner.shouldClean("build-36000", session));
+        assertFalse(failedBuildsCleaner.shouldClean("build-36001", session));
+        assertTrue(failedBuildsCleaner.shouldClean("build-36002", session));
+        assertFalse(failedBuildsCleaner.shouldClean("build-36003", session));
+        // the build record loaded by ID is used although its buildContentId differs
+        assertTrue(failedBuildsCleaner.shouldClean("build-36004", session));
+        assertTrue(failedBuildsCleaner.shouldClean("build_legacy_20170301.1200", session));
+        // one query by IDs for build-NNN groups, one by buildContentId for the rest and no single lookups
+        orchWireMockServer.verify(1, getRequestedFor(urlMatching(ORCH_BUILDS + "\\?.*q=id%3Din%3D.*")));
+        orchWireMockServer.verify(2, getRequestedFor(urlMatching(ORCH_BUILDS + ".*")));
+    }
+
     /**
      * Tests finding of build-related generic-http repositories. It reads a list of generic-http groups which contains 3
      * groups matching the requested build content id. It expects to get those 3 groups in the result along with the
@@ -318,10 +491,10 @@ class FailedBuildsCleanerTest {
                                 .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
                                 .withBodyFile(INDY_GENERIC_GROUPS_FILE)));
 
-        // limit nor auth token is not important for getting group names
+        // limit is not important for getting group names
         Instant limit = Instant.now();
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         List<StoreKey> groupNames = failedBuildsCleaner.findGenericRepos("build-23013", session);
 
@@ -358,10 +531,10 @@ class FailedBuildsCleanerTest {
                                 .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
                                 .withBodyFile(INDY_GENERIC_GROUPS_FILE)));
 
-        // limit nor auth token is not important for getting group names
+        // limit is not important for getting group names
         Instant limit = Instant.now();
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         List<StoreKey> groupNames = failedBuildsCleaner
                 .findGenericRepos("build_org-keycloak-keycloak-connect-4-x_20181109.2045", session);
@@ -399,16 +572,63 @@ class FailedBuildsCleanerTest {
                                 .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
                                 .withBodyFile(INDY_GENERIC_GROUPS_FILE)));
 
-        // limit nor auth token is not important for getting group names
+        // limit is not important for getting group names
         Instant limit = Instant.now();
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
 
         List<StoreKey> groupNames = failedBuildsCleaner.findGenericRepos("build-23014", session);
 
         assertEquals(0, groupNames.size());
     }
 
+    /**
+     * Tests indexing of generic-http groups by buildContentId when the host part of the group name contains "build"
+     * too. The group is streamed from the generic-http group listing. It expects the group to be found only by the full
+     * buildContentId and the listing to be loaded once.
+     */
+    @Test
+    public void findGenericReposHostWithBuild() {
+        indyWireMockServer.stubFor(
+                get(urlMatching(INDY_STORE_GENERIC_GROUP)).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(INDY_GENERIC_GROUPS_HOST_WITH_BUILD_FILE)));
+
+        // limit is not important for getting generic repos
+        Instant limit = Instant.now();
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
+
+        StoreKey group = new StoreKey(GENERIC_PKG_KEY, StoreType.group, "g-build-server-com-build-123");
+        StoreKey remote = new StoreKey(GENERIC_PKG_KEY, StoreType.remote, "r-build-server-com-build-123");
+        StoreKey hosted = new StoreKey(GENERIC_PKG_KEY, StoreType.hosted, "h-build-server-com-build-123");
+        assertEquals(List.of(group, remote, hosted), failedBuildsCleaner.findGenericRepos("build-123", session));
+        assertEquals(List.of(), failedBuildsCleaner.findGenericRepos("build-12", session));
+        assertEquals(List.of(), failedBuildsCleaner.findGenericRepos("123", session));
+        indyWireMockServer.verify(1, getRequestedFor(urlEqualTo(INDY_STORE_GENERIC_GROUP)));
+    }
+
+    /**
+     * Tests a failure of the generic-http group listing. It expects the failure to be counted and reported as a runtime
+     * exception with the cause, not as a NullPointerException.
+     */
+    @Test
+    public void findGenericReposListingFailure() {
+        indyWireMockServer.stubFor(get(urlMatching(INDY_STORE_GENERIC_GROUP)).willReturn(aResponse().withStatus(500)));
+
+        Counter errCounter = registry.counter("test.listing.error.count");
+        double errors = errCounter.count();
+        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(
+                indyClientHolder.getIndy(),
+                Instant.now(),
+                errCounter);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> session.getGenericRepos("build-123"));
+        assertTrue(e.getCause() instanceof IndyClientException);
+        assertEquals(errors + 1, errCounter.count());
+    }
+
     /**
      * Tests the whole cleanup logic for 1 build. The build failed and is old enough. It does not have any generic repos
      * and expects that delete for build group, hosted repo and tracking report were called.
@@ -427,11 +647,6 @@ class FailedBuildsCleanerTest {
                                 .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
                                 .withBodyFile(INDY_GENERIC_GROUPS_FILE)));
 
-        indyWireMockServer
-                .stubFor(head(urlMatching(INDY_STORE_MAVEN_GROUP + "/.*")).willReturn(aResponse().withStatus(200)));
-        indyWireMockServer
-                .stubFor(head(urlMatching(INDY_STORE_MAVEN_HOSTED + "/.*")).willReturn(aResponse().withStatus(200)));
-
         indyWireMockServer
                 .stubFor(delete(urlMatching(INDY_STORE_ENDPOINT + "/.*")).willReturn(aResponse().withStatus(204)));
         indyWireMockServer.stubFor(
@@ -439,15 +654,306 @@ class FailedBuildsCleanerTest {
 
         // limit is set to be after the build record end time
         Instant limit = Instant.ofEpochMilli(1581174847000L);
-        // auth token is not important for getting group names
-        Indy indyClient = failedBuildsCleaner.initIndy("");
-        FailedBuildsCleanerSession session = new FailedBuildsCleanerSession(indyClient, limit);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
+        String metricPrefix = FailedBuildsCleaner.class.getName();
+        double cleaned = registry.counter(metricPrefix + ".groups.cleaned.count").count();
+        long foloClears = registry.timer(metricPrefix + ".folo.clear").count();
 
         failedBuildsCleaner.cleanBuildIfNeeded("build-36000", session);
 
         indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_GROUP + "/build-36000")));
         indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_HOSTED + "/build-36000")));
         indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_FOLO_ADMIN_ENDPOINT + "/build-36000/record")));
+        assertEquals(cleaned + 1, registry.counter(metricPrefix + ".groups.cleaned.count").count());
+        assertEquals(foloClears + 1, registry.timer(metricPrefix + ".folo.clear").count());
+        assertNull(session.getOldestDueBuildEndTime());
     }
 
+    /**
+     * Tests the whole cleanup logic for 1 build with a snapshot of existing stores, which contains only the build
+     * group. The group is already gone when it is deleted. It expects that the hosted repo is not deleted and that the
+     * missing group does not stop the cleanup of the tracking record.
+     */
+    @Test
+    public void cleanBuildIfNeededStoreSnapshot() {
+        orchWireMockServer.stubFor(
+                get(urlMatching(ORCH_BUILDS + "?.*q=buildContentId%3D%3Dbuild-36000")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(BUILD_RECORDS_FAILED_FILE)));
+
+        indyWireMockServer.stubFor(
+                get(INDY_STORE_GENERIC_GROUP).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(INDY_GENERIC_GROUPS_FILE)));
+
+        indyWireMockServer
+                .stubFor(delete(urlMatching(INDY_STORE_ENDPOINT + "/.*")).willReturn(aResponse().withStatus(404)));
+        indyWireMockServer.stubFor(
+                delete(INDY_FOLO_ADMIN_ENDPOINT + "/build-36000/record").willReturn(aResponse().withStatus(204)));
+
+        // limit is set to be after the build record end time
+        Instant limit = Instant.ofEpochMilli(1581174847000L);
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
+        session.setExistingStores(Set.of(new StoreKey(MAVEN_PKG_KEY, StoreType.group, "build-36000")));
+
+        failedBuildsCleaner.cleanBuildIfNeeded("build-36000", session);
+
+        indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_GROUP + "/build-36000")));
+        indyWireMockServer.verify(0, deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_HOSTED + "/build-36000")));
+        indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_FOLO_ADMIN_ENDPOINT + "/build-36000/record")));
+    }
+
+    /**
+     * Tests the assignment of groups to shards. It expects every group to stay in its shard and the groups to be spread
+     * across all shards.
+     */
+    @Test
+    public void getShard() {
+        int[] groupCounts = new int[4];
+        for (int i = 0; i < 4000; i++) {
+            int shard = FailedBuildsCleaner.getShard("build-" + i, 4);
+            assertEquals(shard, FailedBuildsCleaner.getShard("build-" + i, 4));
+            groupCounts[shard]++;
+        }
+        for (int groupCount : groupCounts) {
+            assertTrue(groupCount > 800, "Unbalanced shards");
+        }
+        assertEquals(0, FailedBuildsCleaner.getShard("build-1", 1));
+    }
+
+    /**
+     * Tests a run, which reached its deadline. It expects the groups not to be processed and to be counted as carried
+     * over to the next run.
+     */
+    @Test
+    public void cleanBuildsIfNeededPastDeadline() {
+        // limit is not important for the test
+        Instant limit = Instant.now();
+        Indy indyClient = indyClientHolder.getIndy();
+        FailedBuildsCleanerSession session = newSession(indyClient, limit);
+        session.setDeadline(Instant.now().minusSeconds(1));
+
+        failedBuildsCleaner.cleanBuildsIfNeeded(List.of("build-36000", "build-36001"), session);
+
+        assertEquals(2, session.getCarriedOver());
+        assertEquals(0, session.getPncCalls());
+        orchWireMockServer.verify(0, getRequestedFor(urlMatching(".*")));
+    }
+
+    /**
+     * Tests a run, which reached its deadline before its groups were processed. It expects the run not to be reported
+     * as finished, so it is resumed later.
+     */
+    @Test
+    public void cleanOlderPastDeadline() {
+        stubMavenListings();
+
+        // limit is not important for the test
+        Instant limit = Instant.now();
+        boolean finished = failedBuildsCleaner.cleanOlder(limit, 0, 1, Instant.now().minusSeconds(1));
+
+        assertFalse(finished);
+        orchWireMockServer.verify(0, getRequestedFor(urlMatching(".*")));
+    }
+
+    /**
+     * Tests a sharded run, which reached its deadline while the first shard was being leased. It expects the lease of
+     * the unfinished shard to be released for other replicas and no other shard to be taken.
+     */
+    @Test
+    public void cleanShardsPastDeadline() {
+        stubMavenListings();
+        Instant deadline = Instant.now().plusMillis(200);
+        RecordingShardLeaseStore leaseStore = new RecordingShardLeaseStore(deadline);
+        QuarkusMock.installMockForType(leaseStore, FileShardLeaseStore.class);
+
+        // limit is not important for the test
+        failedBuildsCleaner.cleanShards(Instant.now(), 2, deadline);
+
+        assertEquals(List.of(0), leaseStore.acquired);
+        assertEquals(List.of(0), leaseStore.released);
+    }
+
+    /**
+     * Tests a sharded run cleaning all the shards. None of the builds is found in PNC. It expects the Indy listings to
+     * be loaded only once for all the shards, all the groups to be cleaned and the leases of the cleaned shards to be
+     * kept.
+     */
+    @Test
+    public void cleanShardsSharedListings() {
+        stubMavenListings();
+        indyWireMockServer.stubFor(get(urlMatching(INDY_STORE_GENERIC_GROUP)).willReturn(EMPTY_RESPONSE));
+        indyWireMockServer
+                .stubFor(delete(urlMatching(INDY_STORE_ENDPOINT + "/.*")).willReturn(aResponse().withStatus(204)));
+        indyWireMockServer
+                .stubFor(delete(urlMatching(INDY_FOLO_ADMIN_ENDPOINT + "/.*")).willReturn(aResponse().withStatus(204)));
+        orchWireMockServer.stubFor(get(urlMatching(ORCH_BUILDS + "\\?.*")).willReturn(EMPTY_RESPONSE));
+        RecordingShardLeaseStore leaseStore = new RecordingShardLeaseStore(Instant.now());
+        QuarkusMock.installMockForType(leaseStore, FileShardLeaseStore.class);
+
+        // limit is not important for the test
+        failedBuildsCleaner.cleanShards(Instant.now(), 2, null);
+
+        assertEquals(List.of(0, 1), leaseStore.acquired);
+        assertEquals(List.of(), leaseStore.released);
+        indyWireMockServer.verify(1, getRequestedFor(urlEqualTo(INDY_STORE_MAVEN_GROUP)));
+        indyWireMockServer.verify(1, getRequestedFor(urlEqualTo(INDY_STORE_MAVEN_HOSTED)));
+        indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_GROUP + "/build-32064")));
+        indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_GROUP + "/build-30573")));
+        indyWireMockServer.verify(
+                deleteRequestedFor(
+                        urlEqualTo(INDY_STORE_MAVEN_GROUP + "/build_wildfly-swarm-keycloak-config-api_20170310.1332")));
+    }
+
+    /**
+     * Tests a run processing the groups in batches by multiple workers, the test configuration uses 4 workers and
+     * batches of 50 groups. None of the builds is found in PNC. It expects every group to be cleaned exactly once.
+     */
+    @Test
+    public void cleanOlderConcurrently() {
+        int groupCount = 160;
+        StringBuilder groups = new StringBuilder("{\"items\": [");
+        for (int i = 1; i <= groupCount; i++) {
+            groups.append(i == 1 ? "" : ", ").append("{\"name\": \"build-").append(i).append("\"}");
+        }
+        groups.append("]}");
+        // the connections are not kept alive, so the parallel workers do not leave stale connections for other tests
+        indyWireMockServer.stubFor(
+                get(urlMatching(INDY_STORE_MAVEN_GROUP)).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withHeader("Connection", "close")
+                                .withBody(groups.toString())));
+        indyWireMockServer.stubFor(get(urlMatching(INDY_STORE_MAVEN_HOSTED)).willReturn(closingEmptyResponse()));
+        indyWireMockServer.stubFor(get(urlMatching(INDY_STORE_GENERIC_GROUP)).willReturn(closingEmptyResponse()));
+        indyWireMockServer.stubFor(
+                delete(urlMatching(INDY_STORE_ENDPOINT + "/.*"))
+                        .willReturn(aResponse().withStatus(204).withHeader("Connection", "close")));
+        indyWireMockServer.stubFor(
+                delete(urlMatching(INDY_FOLO_ADMIN_ENDPOINT + "/.*"))
+                        .willReturn(aResponse().withStatus(204).withHeader("Connection", "close")));
+        orchWireMockServer.stubFor(get(urlMatching(ORCH_BUILDS + "\\?.*")).willReturn(closingEmptyResponse()));
+
+        // limit is not important for the test
+        boolean finished = failedBuildsCleaner.cleanOlder(Instant.now(), 0, 1, null);
+
+        assertTrue(finished);
+        for (int i = 1; i <= groupCount; i++) {
+            indyWireMockServer.verify(1, deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_GROUP + "/build-" + i)));
+            indyWireMockServer
+                    .verify(1, deleteRequestedFor(urlEqualTo(INDY_FOLO_ADMIN_ENDPOINT + "/build-" + i + "/record")));
+        }
+        indyWireMockServer.verify(groupCount * 2, deleteRequestedFor(urlMatching(".*")));
+        // one query by IDs and one by buildContentId for every batch
+        orchWireMockServer.verify(8, getRequestedFor(urlMatching(ORCH_BUILDS + ".*")));
+    }
+
+    private ResponseDefinitionBuilder closingEmptyResponse() {
+        return aResponse().withStatus(200)
+                .withBodyFile(EMPTY_RESPONSE_FILE)
+                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                .withHeader("Connection", "close");
+    }
+
+    private void stubMavenListings() {
+        indyWireMockServer.stubFor(
+                get(urlMatching(INDY_STORE_MAVEN_GROUP)).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(INDY_MAVEN_GROUPS_FILE)));
+        indyWireMockServer.stubFor(get(urlMatching(INDY_STORE_MAVEN_HOSTED)).willReturn(EMPTY_RESPONSE));
+    }
+
+    /**
+     * Lease store recording the leases and granting every lease only after the given point in time passes.
+     */
+    private static class RecordingShardLeaseStore extends FileShardLeaseStore {
+
+        private final Instant grantAfter;
+
+        private final List<Integer> acquired = new CopyOnWriteArrayList<>();
+
+        private final List<Integer> released = new CopyOnWriteArrayList<>();
+
+        RecordingShardLeaseStore(Instant grantAfter) {
+            this.grantAfter = grantAfter;
+        }
+
+        @Override
+        public boolean tryAcquire(int shard, String owner, Duration leaseTime) {
+            acquired.add(shard);
+            while (!Instant.now().isAfter(grantAfter)) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void release(int shard, String owner) {
+            released.add(shard);
+        }
+    }
+
+    /**
+     * Tests the dry-run mode. A failed build is decided to be cleaned, but only its stores are written to the plan. It
+     * expects nothing to be deleted until the plan is executed and the executed plan to be deleted.
+     */
+    @Test
+    public void planAndExecuteCleanup() throws IOException {
+        orchWireMockServer.stubFor(
+                get(urlMatching(ORCH_BUILDS + "?.*q=buildContentId%3D%3Dbuild-36000")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(BUILD_RECORDS_FAILED_FILE)));
+
+        indyWireMockServer.stubFor(
+                get(INDY_STORE_GENERIC_GROUP).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(INDY_GENERIC_GROUPS_FILE)));
+
+        indyWireMockServer
+                .stubFor(delete(urlMatching(INDY_STORE_ENDPOINT + "/.*")).willReturn(aResponse().withStatus(204)));
+        indyWireMockServer.stubFor(
+                delete(INDY_FOLO_ADMIN_ENDPOINT + "/build-36000/record").willReturn(aResponse().withStatus(204)));
+
+        Path planFile = Files.createTempFile("cleanup-plan", ".jsonl");
+        try {
+            // limit is set to be after the build record end time
+            Instant limit = Instant.ofEpochMilli(1581174847000L);
+            Indy indyClient = indyClientHolder.getIndy();
+            FailedBuildsCleanerSession session = newSession(indyClient, limit);
+            try (FailedBuildsCleanupPlan plan = FailedBuildsCleanupPlan.create(planFile)) {
+                session.setPlan(plan);
+                failedBuildsCleaner.cleanBuildIfNeeded("build-36000", session);
+                plan.commit();
+                assertEquals(1, plan.getGroupCount());
+                assertEquals(2, plan.getStoreCount());
+            }
+            assertEquals(1, session.getPncCalls());
+            indyWireMockServer.verify(0, deleteRequestedFor(urlMatching(".*")));
+
+            failedBuildsCleaner.executePlan(planFile);
+
+            indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_GROUP + "/build-36000")));
+            indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_STORE_MAVEN_HOSTED + "/build-36000")));
+            indyWireMockServer.verify(deleteRequestedFor(urlEqualTo(INDY_FOLO_ADMIN_ENDPOINT + "/build-36000/record")));
+            assertFalse(Files.exists(planFile));
+        } finally {
+            Files.deleteIfExists(planFile);
+        }
+    }
+
+    private FailedBuildsCleanerSession newSession(Indy indyClient, Instant limit) {
+        return new FailedBuildsCleanerSession(indyClient, limit, registry.counter("test.session.error.count"));
+    }
 }
@@ -0,0 +1,43 @@
+package org.jboss.pnc.cleaner.builds;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FailedBuildsIdSetTest {
+
+    private static final Instant END_TIME = Instant.ofEpochMilli(1581174847000L);
+
+    /**
+     * Tests lookups in a set filled in a random order and grown over its initial capacity. It expects every added
+     * buildContentId to be found with its own end time.
+     */
+    @Test
+    void lookUpEndTimes() {
+        FailedBuildsIdSet set = new FailedBuildsIdSet();
+        for (int i = 0; i < 3000; i++) {
+            long buildNum = (i * 7919L) % 3000 + 1;
+            set.add("build-" + buildNum, END_TIME.plusSeconds(buildNum));
+        }
+        set.add("build_legacy_20170301.1200", END_TIME);
+        set.add("build-5000", null);
+        set.seal();
+
+        assertEquals(3002, set.size());
+        for (long buildNum = 1; buildNum <= 3000; buildNum++) {
+            assertTrue(set.contains("build-" + buildNum));
+            assertEquals(END_TIME.plusSeconds(buildNum), set.getEndTime("build-" + buildNum));
+        }
+        assertEquals(END_TIME, set.getEndTime("build_legacy_20170301.1200"));
+        assertTrue(set.contains("build-5000"));
+        assertNull(set.getEndTime("build-5000"));
+        assertFalse(set.contains("build-3001"));
+        assertNull(set.getEndTime("build-3001"));
+    }
+
+}
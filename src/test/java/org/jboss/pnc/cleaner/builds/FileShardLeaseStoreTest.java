@@ -0,0 +1,52 @@
+package org.jboss.pnc.cleaner.builds;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileShardLeaseStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private FileShardLeaseStore leaseStore;
+
+    @BeforeEach
+    void beforeEach() {
+        leaseStore = new FileShardLeaseStore();
+        leaseStore.leaseDir = Optional.of(dir.toString());
+    }
+
+    /**
+     * Tests leasing of a shard by two replicas. It expects the shard to be leased only by the first one until it
+     * releases the lease.
+     */
+    @Test
+    void acquireAndRelease() throws CleanerException {
+        assertTrue(leaseStore.tryAcquire(0, "replica-1", Duration.ofHours(1)));
+        assertTrue(leaseStore.tryAcquire(0, "replica-1", Duration.ofHours(1)));
+        assertFalse(leaseStore.tryAcquire(0, "replica-2", Duration.ofHours(1)));
+        assertTrue(leaseStore.tryAcquire(1, "replica-2", Duration.ofHours(1)));
+
+        leaseStore.release(0, "replica-2");
+        assertFalse(leaseStore.tryAcquire(0, "replica-2", Duration.ofHours(1)));
+        leaseStore.release(0, "replica-1");
+        assertTrue(leaseStore.tryAcquire(0, "replica-2", Duration.ofHours(1)));
+    }
+
+    /**
+     * Tests leasing of a shard with an expired lease. It expects another replica to get the lease.
+     */
+    @Test
+    void acquireExpired() throws CleanerException {
+        assertTrue(leaseStore.tryAcquire(0, "replica-1", Duration.ofMillis(-1)));
+        assertTrue(leaseStore.tryAcquire(0, "replica-2", Duration.ofHours(1)));
+    }
+}
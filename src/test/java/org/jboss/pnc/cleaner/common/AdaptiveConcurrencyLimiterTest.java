@@ -0,0 +1,104 @@
+package org.jboss.pnc.cleaner.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    /**
+     * Tests raising of the limit. It expects the limit to be raised after a window of fast calls using the whole limit
+     * and not to be raised further when the calls don't use the whole limit.
+     */
+    @Test
+    public void raiseLimit() throws IOException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 4, 10, e -> false);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("ok", limiter.call(() -> "ok"));
+        }
+        assertEquals(2, limiter.getLimit());
+
+        for (int i = 0; i < 20; i++) {
+            limiter.run(() -> {});
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Tests backing off. It expects the limit to be cut by a call failing because of overload and to stay when a call
+     * fails for another reason.
+     */
+    @Test
+    public void backOffOnOverload() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+                "test",
+                8,
+                16,
+                10,
+                e -> e.getMessage().equals("503"));
+
+        assertThrows(IOException.class, () -> limiter.run(() -> {
+            throw new IOException("404");
+        }));
+        assertEquals(8, limiter.getLimit());
+
+        assertThrows(IOException.class, () -> limiter.run(() -> {
+            throw new IOException("503");
+        }));
+        assertEquals(6, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Tests backing off on latency. It expects the limit to stay after a window of fast calls and to be cut after a
+     * window of calls much slower than the fastest window seen, although none of the calls failed.
+     */
+    @Test
+    public void backOffOnLatency() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 8, 16, 10, e -> false);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.run(() -> {});
+        }
+        assertEquals(8, limiter.getLimit());
+
+        for (int i = 0; i < 10; i++) {
+            limiter.run(() -> Thread.sleep(50));
+        }
+        assertEquals(6, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Tests a listing call. It expects a slow listing not to be sampled, so it does not cut the limit, and an
+     * overloaded listing to cut it.
+     */
+    @Test
+    public void listingIsNotSampled() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+                "test",
+                8,
+                16,
+                10,
+                e -> e.getMessage().equals("503"));
+
+        for (int i = 0; i < 10; i++) {
+            limiter.run(() -> {});
+        }
+        for (int i = 0; i < 10; i++) {
+            limiter.runListing(() -> Thread.sleep(50));
+        }
+        assertEquals(8, limiter.getLimit());
+
+        assertThrows(IOException.class, () -> limiter.callListing(() -> {
+            throw new IOException("503");
+        }));
+        assertEquals(6, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+}
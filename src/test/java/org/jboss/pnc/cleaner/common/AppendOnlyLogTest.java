@@ -0,0 +1,53 @@
+package org.jboss.pnc.cleaner.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class AppendOnlyLogTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Tests reading of a log, which was killed while writing. It expects the incomplete last line to be ignored.
+     */
+    @Test
+    void ignoreIncompleteLastLine() throws IOException {
+        Path file = dir.resolve("test.log");
+        AppendOnlyLog log = AppendOnlyLog.open(file, "test log");
+        log.append("A 1");
+        log.close();
+        Files.write(file, "A".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        assertEquals(List.of("A 1"), AppendOnlyLog.readRecords(file));
+    }
+
+    /**
+     * Tests rewriting of the log. It expects the log to contain only the new records followed by the records appended
+     * after the rewrite and no records to be written after it is closed.
+     */
+    @Test
+    void rewriteAndAppend() throws IOException {
+        Path file = dir.resolve("test.log");
+        AppendOnlyLog log = AppendOnlyLog.open(file, "test log");
+        log.append("A 1");
+        log.append("A 2");
+        log.rewrite(List.of("B 1"));
+        log.append("A 3");
+        log.close();
+        log.append("A 4");
+
+        assertFalse(log.isOpen());
+        assertEquals(List.of("B 1", "A 3"), AppendOnlyLog.readRecords(file));
+    }
+}
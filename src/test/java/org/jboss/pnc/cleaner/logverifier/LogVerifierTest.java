@@ -30,6 +30,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import static org.jboss.pnc.cleaner.logverifier.BuildLogVerifier.BUILD_OUTPUT_OK_KEY;
@@ -95,4 +96,37 @@ public class LogVerifierTest {
         build2Updated = orchBuildProvider.getById("2");
         Assertions.assertEquals(Boolean.FALSE.toString(), build2Updated.getAttributes().get(BUILD_OUTPUT_OK_KEY));
     }
+
+    /**
+     * Tests verification of builds spanning two pages, while the verification of one build fails. It expects the
+     * failure not to stop the run and all the other builds to be flagged, although the flagged builds drop out of the
+     * query.
+     */
+    @Test
+    public void shouldVerifyAllPages() {
+        // given
+        orchBuildProvider.setBuilds(new ArrayList<>());
+        for (int id = 101; id <= 160; id++) {
+            Build build = Build.builder()
+                    .id(Integer.toString(id))
+                    .buildOutputChecksum("match")
+                    .attributes(new HashMap<>())
+                    .build();
+            orchBuildProvider.addBuild(build);
+            if (id != 105) {
+                bifrostProvider.addMetaData("build-" + id, new MetaData("match"));
+            }
+        }
+
+        // when
+        int found = buildLogVerifier.verifyUnflaggedBuilds();
+
+        // then
+        Assertions.assertEquals(60, found);
+        for (int id = 101; id <= 160; id++) {
+            Build build = orchBuildProvider.getById(Integer.toString(id));
+            String expected = id == 105 ? null : Boolean.TRUE.toString();
+            Assertions.assertEquals(expected, build.getAttributes().get(BUILD_OUTPUT_OK_KEY), "Build " + id);
+        }
+    }
 }
@@ -21,8 +21,11 @@ import javax.validation.constraints.NotNull;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author <a href="mailto:matejonnet@gmail.opecom">Matej Lazar</a>
@@ -39,8 +42,24 @@ public class OrchBuildEndpoint implements BuildEndpoint {
             @Valid PageParameters pageParameters,
             BuildsFilterParameters buildsFilterParameters,
             List<String> list) {
-        Collection<Build> builds = buildProvider.getBuilds();
-        return new Page<>(0, builds.size(), builds.size(), builds);
+        // supports only the unverified builds query of the log verifier, the pages are ordered by id
+        Stream<Build> builds = buildProvider.getBuilds().stream();
+        for (String attribute : list == null ? Collections.<String> emptyList() : list) {
+            if (attribute.startsWith("!")) {
+                builds = builds.filter(b -> !b.getAttributes().containsKey(attribute.substring(1)));
+            }
+        }
+        String q = pageParameters.getQ();
+        if (q != null && q.contains("id=gt=")) {
+            long afterId = Long.parseLong(q.substring(q.indexOf("id=gt=") + "id=gt=".length()));
+            builds = builds.filter(b -> Long.parseLong(b.getId()) > afterId);
+        }
+        List<Build> matching = builds.sorted(Comparator.comparingLong(b -> Long.parseLong(b.getId())))
+                .collect(Collectors.toList());
+        int pageSize = pageParameters.getPageSize();
+        int from = Math.min(pageParameters.getPageIndex() * pageSize, matching.size());
+        List<Build> content = matching.subList(from, Math.min(from + pageSize, matching.size()));
+        return new Page<>(pageParameters.getPageIndex(), pageSize, matching.size(), content);
     }
 
     @Override
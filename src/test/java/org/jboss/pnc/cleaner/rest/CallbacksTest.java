@@ -0,0 +1,118 @@
+/**
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014-2019 Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.pnc.cleaner.rest;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.jboss.pnc.cleaner.temporaryBuilds.BuildDeleteCallbackManager;
+import org.jboss.pnc.cleaner.temporaryBuilds.BuildGroupDeleteCallbackManager;
+import org.jboss.pnc.cleaner.temporaryBuilds.DeleteCallbackManager;
+import org.jboss.pnc.dto.response.DeleteOperationResult;
+import org.jboss.pnc.enums.ResultStatus;
+import org.junit.jupiter.api.Test;
+
+import javax.inject.Inject;
+import javax.ws.rs.core.MediaType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+@QuarkusTest
+public class CallbacksTest {
+
+    @Inject
+    BuildDeleteCallbackManager buildDeleteCallbackManager;
+
+    @Inject
+    BuildGroupDeleteCallbackManager buildGroupDeleteCallbackManager;
+
+    /**
+     * Tests the bulk callback of builds. It expects the results to be accepted with 202 and the pending deletions to be
+     * completed with them.
+     */
+    @Test
+    public void acceptBuildsBulkCallback() throws Exception {
+        assertBulkCallbackAccepted("/callbacks/delete/builds", buildDeleteCallbackManager, "800", "801");
+    }
+
+    /**
+     * Tests the bulk callback of group builds. It expects the results to be accepted with 202 and the pending deletions
+     * to be completed with them.
+     */
+    @Test
+    public void acceptGroupBuildsBulkCallback() throws Exception {
+        assertBulkCallbackAccepted("/callbacks/delete/group-builds", buildGroupDeleteCallbackManager, "180", "181");
+    }
+
+    /**
+     * Tests the bulk callback of builds with a result without an ID. It expects the request to be rejected with 400 and
+     * no pending deletion to be completed.
+     */
+    @Test
+    public void rejectBuildsBulkCallbackWithoutId() throws Exception {
+        assertBulkCallbackRejected("/callbacks/delete/builds", buildDeleteCallbackManager, "802");
+    }
+
+    /**
+     * Tests the bulk callback of group builds with a result without an ID. It expects the request to be rejected with
+     * 400 and no pending deletion to be completed.
+     */
+    @Test
+    public void rejectGroupBuildsBulkCallbackWithoutId() throws Exception {
+        assertBulkCallbackRejected("/callbacks/delete/group-builds", buildGroupDeleteCallbackManager, "182");
+    }
+
+    private void assertBulkCallbackAccepted(String path, DeleteCallbackManager manager, String firstId, String secondId)
+            throws Exception {
+        CompletableFuture<DeleteOperationResult> first = manager.initializeHandler(firstId).toCompletableFuture();
+        CompletableFuture<DeleteOperationResult> second = manager.initializeHandler(secondId).toCompletableFuture();
+
+        given().contentType(MediaType.APPLICATION_JSON)
+                .body(new DeleteOperationResult[] { result(firstId), result(secondId) })
+                .when()
+                .post(path)
+                .then()
+                .statusCode(202);
+
+        assertEquals(firstId, first.get(5, TimeUnit.SECONDS).getId());
+        assertEquals(secondId, second.get(5, TimeUnit.SECONDS).getId());
+    }
+
+    private void assertBulkCallbackRejected(String path, DeleteCallbackManager manager, String id) throws Exception {
+        CompletableFuture<DeleteOperationResult> pending = manager.initializeHandler(id).toCompletableFuture();
+
+        given().contentType(MediaType.APPLICATION_JSON)
+                .body(new DeleteOperationResult[] { result(id), result(null) })
+                .when()
+                .post(path)
+                .then()
+                .statusCode(400);
+
+        assertFalse(pending.isDone());
+        manager.cancel(id);
+    }
+
+    private static DeleteOperationResult result(String id) {
+        DeleteOperationResult result = new DeleteOperationResult();
+        result.setId(id);
+        result.setStatus(ResultStatus.SUCCESS);
+        return result;
+    }
+}
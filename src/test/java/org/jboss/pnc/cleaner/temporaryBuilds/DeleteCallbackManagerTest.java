@@ -0,0 +1,170 @@
+package org.jboss.pnc.cleaner.temporaryBuilds;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.jboss.pnc.dto.response.DeleteOperationResult;
+import org.jboss.pnc.enums.ResultStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class DeleteCallbackManagerTest {
+
+    private static final String PREFIX = DeleteCallbackManager.class.getName();
+
+    private DeleteCallbackManager manager;
+
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    public void beforeEach() {
+        registry = new SimpleMeterRegistry();
+        manager = new DeleteCallbackManager();
+        manager.registry = registry;
+        manager.MAX_WAIT_TIME = 1;
+        manager.LATE_CALLBACK_TTL = 60;
+        manager.LATE_CALLBACK_MAX_SIZE = 10;
+        manager.init();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        manager.shutdownTimer();
+    }
+
+    /**
+     * Tests completion by a callback. It expects the stage to be completed with the reported result, a second
+     * registration of the same pending deletion to get the same stage and the callback time to be recorded.
+     */
+    @Test
+    public void completeByCallback() throws Exception {
+        CompletionStage<DeleteOperationResult> stage = manager.initializeHandler("100");
+        assertSame(stage, manager.initializeHandler("100"));
+        assertEquals(1, registry.get(PREFIX + ".pending").tag("kind", "build").gauge().value());
+
+        DeleteOperationResult result = new DeleteOperationResult();
+        result.setId("100");
+        result.setStatus(ResultStatus.SUCCESS);
+        manager.callback("100", result);
+
+        assertSame(result, stage.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertEquals(1, registry.get(PREFIX + ".callback").tag("kind", "build").timer().count());
+        assertEquals(0, registry.get(PREFIX + ".pending").tag("kind", "build").gauge().value());
+    }
+
+    /**
+     * Tests registration of a deletion, which is already pending. It expects the second registration to be refused, the
+     * pending stage to be available and a cancel with another stage not to cancel the pending deletion.
+     */
+    @Test
+    public void registerPendingDeletionOnce() throws Exception {
+        CompletionStage<DeleteOperationResult> stage = manager.registerHandler("100");
+        assertNull(manager.registerHandler("100"));
+        assertSame(stage, manager.getPending("100"));
+
+        manager.cancel("100", new CompletableFuture<>());
+        assertSame(stage, manager.getPending("100"));
+
+        manager.cancel("100", stage);
+        assertNull(stage.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertNull(manager.getPending("100"));
+    }
+
+    /**
+     * Tests completion by a bulk callback. It expects every pending stage to be completed with its result.
+     */
+    @Test
+    public void completeByBulkCallback() throws Exception {
+        CompletionStage<DeleteOperationResult> first = manager.initializeHandler("100");
+        CompletionStage<DeleteOperationResult> second = manager.initializeHandler("101");
+
+        DeleteOperationResult firstResult = new DeleteOperationResult();
+        firstResult.setId("100");
+        firstResult.setStatus(ResultStatus.SUCCESS);
+        DeleteOperationResult secondResult = new DeleteOperationResult();
+        secondResult.setId("101");
+        secondResult.setStatus(ResultStatus.FAILED);
+        manager.callbacks(List.of(firstResult, secondResult));
+
+        assertSame(firstResult, first.toCompletableFuture().get(1, TimeUnit.SECONDS));
+        assertSame(secondResult, second.toCompletableFuture().get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests the timeout. It expects the stage to be completed with null when the callback does not arrive in time, the
+     * result of the late callback to be kept for a single retry and both the timeout and the late callback to be
+     * counted.
+     */
+    @Test
+    public void completeOnTimeout() throws Exception {
+        CompletableFuture<DeleteOperationResult> future = manager.initializeHandler("100").toCompletableFuture();
+
+        assertNull(future.get(5, TimeUnit.SECONDS));
+        assertNull(manager.takeLateResult("100"));
+
+        DeleteOperationResult result = new DeleteOperationResult();
+        manager.callback("100", result);
+        assertNull(future.get());
+        assertSame(result, manager.takeLateResult("100"));
+        assertNull(manager.takeLateResult("100"));
+        assertEquals(1, registry.get(PREFIX + ".timeout.count").counter().count());
+        assertEquals(1, registry.get(PREFIX + ".late.count").counter().count());
+        assertEquals(0, registry.get(PREFIX + ".callback").timer().count());
+    }
+
+    /**
+     * Tests resolving of a deletion by polling. The first poll finds the build, the second one does not. It expects the
+     * deletion to be resolved as successful without any callback.
+     */
+    @Test
+    public void resolveByPolling() throws Exception {
+        manager.MAX_WAIT_TIME = 60;
+        manager.POLL_INITIAL_DELAY = 1;
+        manager.POLL_MAX_DELAY = 1;
+        CompletableFuture<DeleteOperationResult> future = manager.initializeHandler("100").toCompletableFuture();
+
+        AtomicInteger polls = new AtomicInteger();
+        manager.pollUntilDeleted("100", () -> polls.incrementAndGet() > 1);
+
+        DeleteOperationResult result = future.get(10, TimeUnit.SECONDS);
+        assertEquals(ResultStatus.SUCCESS, result.getStatus());
+        assertEquals(2, polls.get());
+    }
+
+    /**
+     * Tests a poll blocked on a slow check. It expects the timeout of another deletion not to be delayed by it.
+     */
+    @Test
+    public void timeOutWhilePollBlocks() throws Exception {
+        manager.MAX_WAIT_TIME = 2;
+        manager.POLL_INITIAL_DELAY = 1;
+        CountDownLatch polling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            manager.initializeHandler("100");
+            manager.pollUntilDeleted("100", () -> {
+                polling.countDown();
+                release.await();
+                return false;
+            });
+            polling.await(5, TimeUnit.SECONDS);
+
+            CompletableFuture<DeleteOperationResult> future = manager.initializeHandler("101").toCompletableFuture();
+
+            assertNull(future.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+}
@@ -33,11 +33,14 @@ import org.junit.jupiter.api.Test;
 import javax.inject.Inject;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.delete;
 import static com.github.tomakehurst.wiremock.client.WireMock.deleteRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static java.time.Duration.ofSeconds;
@@ -61,12 +64,22 @@ public class TemporaryBuildsCleanerImplTest {
 
     static final String SINGLE_TEMPORARY_BUILD_GROUP_FILE = "singleTemporaryBuildGroup.json";
 
+    static final String MULTIPLE_TEMPORARY_BUILDS_FILE = "multipleTemporaryBuilds.json";
+
+    static final String SINGLE_TEMPORARY_GROUP_MEMBER_BUILD_FILE = "singleTemporaryGroupMemberBuild.json";
+
     private WireMockServer wireMockServer = new WireMockServer(
             options().port(8082).withRootDirectory("src/test/resources/wiremock/general"));
 
     @Inject
     TemporaryBuildsCleanerImpl temporaryBuildsCleaner;
 
+    @Inject
+    TemporaryBuildsCleanerAdapter temporaryBuildsCleanerAdapter;
+
+    @Inject
+    BuildDeleteCallbackManager buildDeleteCallbackManager;
+
     @BeforeEach
     public void beforeEach() {
         wireMockServer.start();
@@ -110,6 +123,170 @@ public class TemporaryBuildsCleanerImplTest {
 
         // then
         wireMockServer.verify(1, deleteRequestedFor(urlMatching(deleteRequestRegex)));
+        wireMockServer.verify(
+                1,
+                getRequestedFor(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*sort=%3Dasc%3Did.*")));
+        wireMockServer.verify(1, getRequestedFor(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")));
+    }
+
+    /**
+     * Tests parallel deletes of several builds, the test configuration allows 16 deletes in flight. Every build gets
+     * its callback about 2 seconds after the start. It expects every build to be deleted exactly once and the builds to
+     * be listed only once, the deletes do not shift the pages read by the cursor.
+     */
+    @Test
+    public void shouldDeleteTemporaryBuildsConcurrently() {
+        // given
+        wireMockServer.stubFor(
+                get(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")).inScenario("scenario")
+                        .whenScenarioStateIs(Scenario.STARTED)
+                        .willReturn(
+                                aResponse().withStatus(200)
+                                        .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                        .withBodyFile(MULTIPLE_TEMPORARY_BUILDS_FILE))
+                        .willSetStateTo("Return nothing"));
+        wireMockServer.stubFor(
+                get(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")).inScenario("scenario")
+                        .whenScenarioStateIs("Return nothing")
+                        .willReturn(
+                                aResponse().withStatus(200)
+                                        .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                        .withBodyFile(EMPTY_RESPONSE_FILE)));
+        wireMockServer.stubFor(
+                delete(urlMatching(BUILDS_ENDPOINT + "/7\\d\\d\\?.*")).willReturn(aResponse().withStatus(200)));
+
+        for (int buildId = 701; buildId <= 705; buildId++) {
+            startCallbackThread("http://0.0.0.0:8081/callbacks/delete/builds/" + buildId);
+        }
+
+        // when
+        assertTimeoutPreemptively(
+                ofSeconds(15),
+                () -> temporaryBuildsCleaner.deleteExpiredBuildRecords(TimeUtils.getDateXDaysAgo(14)));
+
+        // then
+        for (int buildId = 701; buildId <= 705; buildId++) {
+            wireMockServer.verify(1, deleteRequestedFor(urlMatching(BUILDS_ENDPOINT + "/" + buildId + "\\?.*")));
+        }
+        wireMockServer.verify(5, deleteRequestedFor(urlMatching(BUILDS_ENDPOINT + ".*")));
+        wireMockServer.verify(1, getRequestedFor(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")));
+    }
+
+    @Test
+    public void shouldNotRescanIfNothingWasDeleted() {
+        // given
+        wireMockServer.stubFor(
+                get(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(SINGLE_TEMPORARY_BUILD_FILE)));
+        wireMockServer
+                .stubFor(delete(urlMatching(BUILDS_ENDPOINT + "/684\\?.*")).willReturn(aResponse().withStatus(500)));
+
+        // when
+        temporaryBuildsCleaner.deleteExpiredBuildRecords(TimeUtils.getDateXDaysAgo(14));
+
+        // then - the failed build is not retried and the builds are not listed again
+        wireMockServer.verify(1, deleteRequestedFor(urlMatching(BUILDS_ENDPOINT + "/684\\?.*")));
+        wireMockServer.verify(1, getRequestedFor(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")));
+    }
+
+    @Test
+    public void shouldDeleteGroupBuildsAndBuildsInOneRun() {
+        // given
+        wireMockServer.stubFor(
+                get(urlMatching(GROUP_BUILDS_ENDPOINT + "\\?.*")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(SINGLE_TEMPORARY_BUILD_GROUP_FILE)));
+        wireMockServer.stubFor(
+                get(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")).inScenario("scenario")
+                        .whenScenarioStateIs(Scenario.STARTED)
+                        .willReturn(
+                                aResponse().withStatus(200)
+                                        .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                        .withBodyFile(SINGLE_TEMPORARY_BUILD_FILE))
+                        .willSetStateTo("Return nothing"));
+        wireMockServer.stubFor(
+                get(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")).inScenario("scenario")
+                        .whenScenarioStateIs("Return nothing")
+                        .willReturn(
+                                aResponse().withStatus(200)
+                                        .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                        .withBodyFile(EMPTY_RESPONSE_FILE)));
+        wireMockServer.stubFor(
+                delete(urlMatching(GROUP_BUILDS_ENDPOINT + "/166\\?.*")).willReturn(aResponse().withStatus(200)));
+        wireMockServer
+                .stubFor(delete(urlMatching(BUILDS_ENDPOINT + "/684\\?.*")).willReturn(aResponse().withStatus(200)));
+
+        startCallbackThread("http://0.0.0.0:8081/callbacks/delete/group-builds/166");
+        startCallbackThread("http://0.0.0.0:8081/callbacks/delete/builds/684");
+
+        // when - the build is deleted while the group build waits for its callback
+        assertTimeoutPreemptively(ofSeconds(15), () -> temporaryBuildsCleaner.cleanupExpiredTemporaryBuilds());
+
+        // then
+        wireMockServer.verify(1, deleteRequestedFor(urlMatching(GROUP_BUILDS_ENDPOINT + "/166\\?.*")));
+        wireMockServer.verify(1, deleteRequestedFor(urlMatching(BUILDS_ENDPOINT + "/684\\?.*")));
+    }
+
+    /**
+     * Tests a run, in which a build of a deleted group build is listed. It expects the build not to be deleted on its
+     * own, as the group build deletion deletes it.
+     */
+    @Test
+    public void shouldNotDeleteBuildOfDeletedGroupBuild() {
+        // given
+        stubGroupMemberBuildListing();
+        wireMockServer.stubFor(
+                delete(urlMatching(GROUP_BUILDS_ENDPOINT + "/166\\?.*")).willReturn(aResponse().withStatus(200)));
+        wireMockServer
+                .stubFor(delete(urlMatching(BUILDS_ENDPOINT + "/685\\?.*")).willReturn(aResponse().withStatus(200)));
+
+        startCallbackThread("http://0.0.0.0:8081/callbacks/delete/group-builds/166");
+
+        // when
+        assertTimeoutPreemptively(ofSeconds(15), () -> temporaryBuildsCleaner.cleanupExpiredTemporaryBuilds());
+
+        // then
+        wireMockServer.verify(1, deleteRequestedFor(urlMatching(GROUP_BUILDS_ENDPOINT + "/166\\?.*")));
+        wireMockServer.verify(0, deleteRequestedFor(urlMatching(BUILDS_ENDPOINT + "/685\\?.*")));
+    }
+
+    /**
+     * Tests a run, in which a build of a group build, which fails to be deleted, is listed. It expects the build to be
+     * deleted on its own after the group build deletion failed.
+     */
+    @Test
+    public void shouldDeleteBuildOfGroupBuildFailedToBeDeleted() {
+        // given
+        stubGroupMemberBuildListing();
+        wireMockServer.stubFor(
+                delete(urlMatching(GROUP_BUILDS_ENDPOINT + "/166\\?.*")).willReturn(aResponse().withStatus(500)));
+        wireMockServer
+                .stubFor(delete(urlMatching(BUILDS_ENDPOINT + "/685\\?.*")).willReturn(aResponse().withStatus(200)));
+
+        startCallbackThread("http://0.0.0.0:8081/callbacks/delete/builds/685");
+
+        // when
+        assertTimeoutPreemptively(ofSeconds(15), () -> temporaryBuildsCleaner.cleanupExpiredTemporaryBuilds());
+
+        // then
+        wireMockServer.verify(1, deleteRequestedFor(urlMatching(GROUP_BUILDS_ENDPOINT + "/166\\?.*")));
+        wireMockServer.verify(1, deleteRequestedFor(urlMatching(BUILDS_ENDPOINT + "/685\\?.*")));
+    }
+
+    private void stubGroupMemberBuildListing() {
+        wireMockServer.stubFor(
+                get(urlMatching(GROUP_BUILDS_ENDPOINT + "\\?.*")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(SINGLE_TEMPORARY_BUILD_GROUP_FILE)));
+        wireMockServer.stubFor(
+                get(urlMatching(BUILDS_ENDPOINT + GET_TEMP_BUILDS_ENDPOINT + "\\?.*")).willReturn(
+                        aResponse().withStatus(200)
+                                .withHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+                                .withBodyFile(SINGLE_TEMPORARY_GROUP_MEMBER_BUILD_FILE)));
     }
 
     private void startCallbackThread(String callbackUrl) {
@@ -136,6 +313,32 @@ public class TemporaryBuildsCleanerImplTest {
         HttpUtils.performHttpPostRequest(callbackUrl, deleteOperationResult);
     }
 
+    /**
+     * Tests a deletion of a build, which deletion is already pending. It expects the build to be deleted only once and
+     * both deletions to be completed by the single callback.
+     */
+    @Test
+    public void shouldNotDeleteABuildTwiceWhilePending() throws Exception {
+        // given
+        String deleteRequestRegex = BUILDS_ENDPOINT + "/684\\?callback=.*";
+        wireMockServer.stubFor(delete(urlMatching(deleteRequestRegex)).willReturn(aResponse().withStatus(200)));
+
+        // when
+        CompletableFuture<Void> first = temporaryBuildsCleanerAdapter.deleteTemporaryBuildAsync("684")
+                .toCompletableFuture();
+        CompletableFuture<Void> second = temporaryBuildsCleanerAdapter.deleteTemporaryBuildAsync("684")
+                .toCompletableFuture();
+        DeleteOperationResult result = new DeleteOperationResult();
+        result.setId("684");
+        result.setStatus(ResultStatus.SUCCESS);
+        buildDeleteCallbackManager.callback("684", result);
+
+        // then
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        wireMockServer.verify(1, deleteRequestedFor(urlMatching(deleteRequestRegex)));
+    }
+
     @Test
     public void shouldSucceedIfNoBuildToBeDeleted() {
         // given
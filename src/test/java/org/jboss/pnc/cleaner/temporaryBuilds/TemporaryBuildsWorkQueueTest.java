@@ -0,0 +1,139 @@
+package org.jboss.pnc.cleaner.temporaryBuilds;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.jboss.pnc.cleaner.temporaryBuilds.TemporaryBuildsWorkQueue.Kind.BUILD;
+import static org.jboss.pnc.cleaner.temporaryBuilds.TemporaryBuildsWorkQueue.Kind.GROUP_BUILD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TemporaryBuildsWorkQueueTest {
+
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Tests resuming after a restart. It records deletions in all the states, reopens the queue and expects the
+     * discovered and started deletions to be unfinished, the succeeded one to be dropped and the failed one to back
+     * off.
+     */
+    @Test
+    void resumeUnfinished() throws IOException {
+        Path file = dir.resolve("temporary-builds.queue");
+        TemporaryBuildsWorkQueue queue = TemporaryBuildsWorkQueue.open(file, HOUR, HOUR);
+        queue.recordDiscovered(BUILD, "100");
+        queue.recordDiscovered(BUILD, "101");
+        queue.recordInFlight(BUILD, "101");
+        queue.recordInFlight(BUILD, "102");
+        queue.recordSucceeded(BUILD, "102");
+        queue.recordInFlight(GROUP_BUILD, "10");
+        queue.recordFailed(GROUP_BUILD, "10");
+        queue.close();
+        Files.write(file, "S B 10".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        TemporaryBuildsWorkQueue resumed = TemporaryBuildsWorkQueue.open(file, HOUR, HOUR);
+        assertEquals(List.of("100", "101"), resumed.getUnfinished(BUILD));
+        assertEquals(List.of(), resumed.getUnfinished(GROUP_BUILD));
+        assertTrue(resumed.isBackingOff(GROUP_BUILD, "10"));
+        assertFalse(resumed.isBackingOff(BUILD, "100"));
+        assertEquals(3, resumed.size());
+        resumed.close();
+    }
+
+    /**
+     * Tests the exponential backoff of a repeatedly failing deletion. It expects the retry delay to double with every
+     * failure until it reaches the maximum.
+     */
+    @Test
+    void backOffExponentially() throws IOException {
+        MovingClock clock = new MovingClock();
+        TemporaryBuildsWorkQueue queue = TemporaryBuildsWorkQueue
+                .open(dir.resolve("temporary-builds.queue"), HOUR, HOUR.multipliedBy(3), clock);
+
+        queue.recordFailed(BUILD, "100");
+        clock.move(HOUR.minusSeconds(1));
+        assertTrue(queue.isBackingOff(BUILD, "100"));
+        clock.move(Duration.ofSeconds(1));
+        assertFalse(queue.isBackingOff(BUILD, "100"));
+
+        queue.recordFailed(BUILD, "100");
+        clock.move(HOUR.multipliedBy(2).minusSeconds(1));
+        assertTrue(queue.isBackingOff(BUILD, "100"));
+        clock.move(Duration.ofSeconds(1));
+        assertFalse(queue.isBackingOff(BUILD, "100"));
+
+        queue.recordFailed(BUILD, "100");
+        clock.move(HOUR.multipliedBy(3));
+        assertFalse(queue.isBackingOff(BUILD, "100"));
+        queue.close();
+    }
+
+    /**
+     * Tests completion of a run. It expects failed deletions, which were not discovered again, to be dropped and the
+     * log to be compacted to a single record per unfinished deletion.
+     */
+    @Test
+    void compactOnComplete() throws IOException {
+        Path file = dir.resolve("temporary-builds.queue");
+        TemporaryBuildsWorkQueue queue = TemporaryBuildsWorkQueue.open(file, HOUR, HOUR);
+        queue.recordFailed(BUILD, "100");
+        queue.recordFailed(BUILD, "101");
+        queue.close();
+
+        queue = TemporaryBuildsWorkQueue.open(file, HOUR, HOUR);
+        queue.recordDiscovered(BUILD, "101");
+        queue.recordFailed(BUILD, "101");
+        queue.recordDiscovered(BUILD, "102");
+        queue.recordInFlight(BUILD, "102");
+        queue.recordSucceeded(BUILD, "102");
+        queue.complete();
+        queue.recordDiscovered(BUILD, "103");
+        queue.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).startsWith("F B 101 2 "));
+        assertEquals("N B 103", lines.get(1));
+    }
+
+    private static class MovingClock extends Clock {
+
+        private Instant now = Instant.ofEpochMilli(1581174847000L);
+
+        void move(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+}